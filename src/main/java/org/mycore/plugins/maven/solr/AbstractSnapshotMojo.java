@@ -0,0 +1,124 @@
+/*
+ * This file is part of ***  M y C o R e  ***
+ * See http://www.mycore.de/ for details.
+ *
+ * MyCoRe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MyCoRe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MyCoRe.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mycore.plugins.maven.solr;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugins.annotations.Parameter;
+import org.mycore.plugins.maven.solr.tools.CopyManifest;
+import org.mycore.plugins.maven.solr.tools.IndexSnapshotStore;
+import org.mycore.plugins.maven.solr.tools.InstanceFingerprint;
+
+/**
+ * Base of the goals that store and restore the data directories of the cores in the SOLR home.
+ * <p>
+ * Snapshots are identified by a key. It defaults to a hash of the SOLR version, the SOLR home without the data
+ * directories and the {@link #snapshotInputs}. The restore goal records the key in the SOLR home, so the snapshot
+ * goal uses the same key, even if SOLR changed the configuration in the SOLR home in the meantime.
+ */
+public abstract class AbstractSnapshotMojo extends AbstractSolrMojo {
+
+    private static final String SNAPSHOT_KEY_FILE = ".solr-runner-snapshot";
+
+    /**
+     * The directory that holds the snapshots. Defaults to solr-snapshots in the local repository. It should be on
+     * the same filesystem as the SOLR home, so index files can be hard linked.
+     */
+    @Parameter(property = "snapshotDirectory", required = false)
+    private File snapshotDirectory;
+
+    /**
+     * The key of the snapshot, replaces the computed key.
+     */
+    @Parameter(property = "snapshotKey", required = false)
+    private String snapshotKey;
+
+    /**
+     * Files or directories the data in the cores is created from, e.g. the documents the tests index. Their content
+     * is part of the computed key, so a changed input does not restore an outdated snapshot.
+     */
+    @Parameter(property = "snapshotInputs", required = false)
+    private List<File> snapshotInputs;
+
+    protected IndexSnapshotStore getSnapshotStore() throws MojoFailureException {
+        Path directory = snapshotDirectory != null ? snapshotDirectory.toPath()
+            : getLocalRepoPath().resolve("solr-snapshots");
+        IndexSnapshotStore store = new IndexSnapshotStore(directory);
+        store.setLog(getLog());
+        return store;
+    }
+
+    /**
+     * @return the configured key, the key recorded in the SOLR home by the restore goal, or the computed key
+     */
+    protected String getSnapshotKey() throws IOException, MojoFailureException {
+        Path keyFile = getSnapshotKeyFile();
+        if (!isSnapshotKeyConfigured() && Files.exists(keyFile)) {
+            return Files.readString(keyFile).trim();
+        }
+        return getCurrentSnapshotKey();
+    }
+
+    /**
+     * @return the configured key, or the key computed from the SOLR home and the snapshot inputs
+     */
+    protected String getCurrentSnapshotKey() throws IOException, MojoFailureException {
+        return isSnapshotKeyConfigured() ? snapshotKey : computeSnapshotKey();
+    }
+
+    private boolean isSnapshotKeyConfigured() {
+        return snapshotKey != null && !snapshotKey.isBlank();
+    }
+
+    private String computeSnapshotKey() throws IOException, MojoFailureException {
+        Map<String, String> settings = new LinkedHashMap<>();
+        settings.put("solrVersion", getInstanceSettings().get("solrVersion"));
+        if (snapshotInputs != null) {
+            for (int i = 0; i < snapshotInputs.size(); i++) {
+                Path inputPath = snapshotInputs.get(i).toPath();
+                if (!Files.exists(inputPath)) {
+                    throw new MojoFailureException("The snapshot input " + inputPath + " does not exist");
+                }
+                try (Stream<Path> files = Files.walk(inputPath)) {
+                    for (Path file : files.filter(Files::isRegularFile).sorted().toList()) {
+                        settings.put("input" + i + ":" + toSlashes(inputPath.relativize(file)),
+                            CopyManifest.hash(file));
+                    }
+                }
+            }
+        }
+        return InstanceFingerprint.compute(getSOLRHome(), settings).getValue();
+    }
+
+    private static String toSlashes(Path relativePath) {
+        return relativePath.toString().replace(relativePath.getFileSystem().getSeparator(), "/");
+    }
+
+    protected Path getSnapshotKeyFile() {
+        return getSOLRHome().resolve(SNAPSHOT_KEY_FILE);
+    }
+}
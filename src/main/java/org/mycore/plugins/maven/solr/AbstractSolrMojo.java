@@ -18,50 +18,95 @@
 
 package org.mycore.plugins.maven.solr;
 
-import org.apache.commons.compress.archivers.ArchiveEntry;
-import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
-import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
-import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
 import org.apache.maven.plugin.AbstractMojo;
 import org.apache.maven.plugin.MojoFailureException;
-import org.apache.maven.plugin.logging.Log;
 import org.apache.maven.plugins.annotations.Parameter;
+import org.apache.maven.project.MavenProject;
 import org.eclipse.aether.RepositorySystemSession;
+import org.mycore.plugins.maven.solr.tools.ArchiveChecksum;
+import org.mycore.plugins.maven.solr.tools.GlobFilter;
+import org.mycore.plugins.maven.solr.tools.InstallLock;
+import org.mycore.plugins.maven.solr.tools.PortPool;
+import org.mycore.plugins.maven.solr.tools.RangeDownloader;
 import org.mycore.plugins.maven.solr.tools.SOLRRunner;
+import org.mycore.plugins.maven.solr.tools.SharedHttpClient;
+import org.mycore.plugins.maven.solr.tools.SourceRace;
+import org.mycore.plugins.maven.solr.tools.TarExtractor;
+import org.mycore.plugins.maven.solr.tools.TeeInputStream;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
 import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
 import java.nio.file.attribute.FileTime;
-import java.nio.file.attribute.PosixFileAttributeView;
-import java.nio.file.attribute.PosixFilePermission;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.ZoneOffset;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
 import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
-import java.util.EnumSet;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
-import java.util.stream.Collectors;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.stream.Stream;
 
 abstract class AbstractSolrMojo extends AbstractMojo {
 
+    private static final String INSTALL_MANIFEST = ".solr-runner-install.properties";
+
+    private static final String PORT_REGISTRY = "solr-ports.properties";
+
+    private static final int RANGE_DOWNLOAD_ATTEMPTS = 3;
+
+    private static final int FILTER_HASH_BYTES = 8;
+
+    private static final List<String> MINIMAL_EXTRACT_EXCLUDES = List.of("docs/**", "example/**", "licenses/**",
+        "prometheus-exporter/**", "modules/**", "contrib/**");
+
     @Parameter(defaultValue = "${repositorySystemSession}", readonly = true, required = true)
     private RepositorySystemSession repositorySystemSession;
 
+    @Parameter(defaultValue = "${project}", readonly = true, required = true)
+    protected MavenProject project;
+
     @Parameter(property = "solrMirror", defaultValue = "https://dlcdn.apache.org/")
     private URI solrMirrorURL;
 
     @Parameter(property = "solrArchive", defaultValue = "https://archive.apache.org/dist/")
     private URI solrArchiveURL;
 
+    /**
+     * Further mirrors that provide SOLR. They are tried after {@link #solrMirrorURL} and before
+     * {@link #solrArchiveURL}, or raced against them if {@link #raceMirrors} is true.
+     */
+    @Parameter(property = "additionalSolrMirrors", required = false)
+    private List<URI> additionalSolrMirrorURLs;
+
+    /**
+     * If true, all download sources are probed concurrently and the one with the best early throughput is used,
+     * instead of trying them one after the other.
+     */
+    @Parameter(property = "raceMirrors", required = false, defaultValue = "false")
+    protected Boolean raceMirrors;
+
     @Parameter(property = "solrVersion", defaultValue = "9.8.1")
     private String solrVersionString;
 
@@ -74,8 +119,33 @@ abstract class AbstractSolrMojo extends AbstractMojo {
     @Parameter(property = "solrHome", required = false)
     private File solrHome;
 
+    /**
+     * The directory that holds the PID file, the fingerprint and the logs of each SOLR instance, in a directory per
+     * port. This keeps instances that run from the same installation in the local repository apart. Defaults to a
+     * directory next to the SOLR home, named like it with the suffix -runtime, so it survives mvn clean as long as the
+     * SOLR home does. If it is in the build directory, mvn clean deletes the PID file of a SOLR that is kept running
+     * by reuseRunningSolr, and the next build can neither reuse nor stop that SOLR.
+     */
+    @Parameter(property = "solrRuntimeDirectory", required = false)
+    private File solrRuntimeDirectory;
+
     @Parameter(property = "solrPort", required = true, defaultValue = "8983") protected Integer solrPort;
 
+    /**
+     * A range of ports, e.g. 8983-9082. If set, the start goal reserves a free port from the range instead of using
+     * solrPort, so concurrent builds on one machine get their own SOLR. The reservation is released by the stop
+     * goal.
+     */
+    @Parameter(property = "solrPortPool", required = false)
+    protected String solrPortPool;
+
+    /**
+     * The prefix of the project properties the start goal sets, &lt;prefix&gt;.port, &lt;prefix&gt;.url and in
+     * cloud mode &lt;prefix&gt;.zkHost.
+     */
+    @Parameter(property = "solrPropertyPrefix", required = false, defaultValue = "solr")
+    protected String solrPropertyPrefix;
+
     @Parameter(property = "force", required = false, defaultValue = "false") protected Boolean force;
 
     @Parameter(property = "cloudMode", required = false, defaultValue = "false")
@@ -84,58 +154,349 @@ abstract class AbstractSolrMojo extends AbstractMojo {
     @Parameter(property = "securityJsonContent", required = false)
     protected String securityJsonContent = null;
 
+    /**
+     * The number of SolrCloud nodes in cloud mode. The nodes listen on consecutive ports starting with solrPort and
+     * use the embedded ZooKeeper of the first node. Every further node gets its own SOLR home next to the SOLR
+     * home, named like it with the suffix -node&lt;n&gt;.
+     */
+    @Parameter(property = "cloudNodes", required = false, defaultValue = "1")
+    protected Integer cloudNodes;
+
+    /**
+     * How SOLR is started and stopped: <code>script</code> uses bin/solr, <code>direct</code> starts the Jetty of
+     * SOLR with the java executable of the build and stops it by its PID. The direct mode skips the environment
+     * detection and the port wait loop of the script, but ignores additionalParams. <code>embedded</code> runs SOLR
+     * inside the JVM of the build, which saves the start of a JVM, but SOLR shares its heap and, if it is not
+     * stopped, lives until the end of the build. SOLR reads its configuration from the system properties of the JVM,
+     * so only one embedded SOLR can run at a time, the start of a second one fails, e.g. in a parallel build.
+     */
+    @Parameter(property = "launchMode", required = false, defaultValue = "script")
+    protected String launchMode;
+
+    /**
+     * The heap size of SOLR, e.g. 1g. Defaults to the default of bin/solr, 512m.
+     */
+    @Parameter(property = "solrMemory", required = false)
+    protected String solrMemory;
+
+    /**
+     * The user for Basic authentication against a SOLR secured by the security.json.
+     */
+    @Parameter(property = "solrUsername", required = false)
+    protected String solrUsername;
+
+    /**
+     * The password of the {@link #solrUsername}.
+     */
+    @Parameter(property = "solrPassword", required = false)
+    protected String solrPassword;
+
+    /**
+     * If true, the start goal reuses a SOLR that is still running on the port from an earlier build, if it was
+     * started with the same settings and SOLR home, and the stop goal leaves SOLR running. Run the stop goal with
+     * <code>-DreuseRunningSolr=false</code> to stop it. The running SOLR is found by its PID file and fingerprint in
+     * the {@link #solrRuntimeDirectory}, so that directory has to survive mvn clean.
+     */
+    @Parameter(property = "reuseRunningSolr", required = false, defaultValue = "false")
+    protected Boolean reuseRunningSolr;
+
+    /**
+     * If true, a SOLR archive that has to be downloaded is extracted while it is downloaded, instead of reading
+     * it back from the local repository after the download has finished.
+     */
+    @Parameter(property = "streamingExtract", required = false, defaultValue = "false")
+    protected Boolean streamingExtract;
+
+    /**
+     * The number of concurrent range requests used to download the SOLR archive. Interrupted downloads are resumed
+     * by the next build. Values below 2 disable range requests, so does {@link #streamingExtract}.
+     */
+    @Parameter(property = "parallelDownloads", required = false, defaultValue = "4")
+    protected Integer parallelDownloads;
+
+    /**
+     * If true, the SOLR archive is verified against the SHA-512 checksum published next to it. The result is stored
+     * in a marker file next to the archive, so later builds don't need to hash it again.
+     */
+    @Parameter(property = "verifyChecksum", required = false, defaultValue = "true")
+    protected Boolean verifyChecksum;
+
+    /**
+     * If true, the SOLR archive is inflated on one thread while the extracted files are written by a pool of
+     * virtual threads. Set to false to extract everything on a single thread.
+     */
+    @Parameter(property = "parallelExtract", required = false, defaultValue = "true")
+    protected Boolean parallelExtract;
+
+    /**
+     * Globs of entries in the SOLR archive, relative to its root folder, that are not extracted.
+     */
+    @Parameter(property = "extractExcludes", required = false)
+    protected List<String> extractExcludes;
+
+    /**
+     * If true, a cached SOLR archive is revalidated with a conditional request against the download sources and
+     * downloaded again if it was changed.
+     */
+    @Parameter(property = "refreshSolrArchive", required = false, defaultValue = "false")
+    protected Boolean refreshSolrArchive;
+
+    /**
+     * Globs of entries that are extracted even if they match an exclude, e.g. <code>modules/ltr/**</code>.
+     */
+    @Parameter(property = "extractIncludes", required = false)
+    protected List<String> extractIncludes;
+
+    /**
+     * <code>full</code> extracts the whole archive. <code>minimal</code> additionally excludes everything that is not
+     * needed to run SOLR: documentation, examples, licenses, the prometheus exporter and the optional modules.
+     */
+    @Parameter(property = "extractPreset", required = false, defaultValue = "full")
+    protected String extractPreset;
+
+    /**
+     * Installs SOLR to the local repository, if it is not installed already.
+     * <p>
+     * The archive is extracted to a staging directory, which is renamed to its final name after a manifest has been
+     * written into it. A lock file in the local repository makes sure that only one build does this, while other
+     * builds wait and reuse the installation.
+     * <p>
+     * If a refreshed archive was changed, the installation is replaced, but not while a SOLR runs from it. It is then
+     * replaced by a later build with {@link #refreshSolrArchive}.
+     */
     protected void setUpSolr() throws MojoFailureException {
-        if (!isSOLRExecutableExisting()) {
-            if (!isSOLRZipExisting()) {
-                getLog().debug("Download " + getSolrTgzFileName() + " because it does not exists!");
-                downloadTGZ();
+        boolean refresh = Boolean.TRUE.equals(refreshSolrArchive);
+        if (!refresh && isSOLRExecutableExisting()) {
+            return;
+        }
+        try (InstallLock lock = InstallLock.acquire(getInstallLockPath(), getLog())) {
+            boolean archiveChanged = refresh && Files.exists(getTGZPath()) && downloadTGZ(null, true);
+            if (isSOLRExecutableExisting() || takeOverInstallation()) {
+                if (!refresh) {
+                    getLog().info("SOLR " + solrVersionString + " was installed by another build.");
+                    return;
+                }
+                if (!archiveChanged && !isInstallationOutdated()) {
+                    return;
+                }
+                Optional<ProcessHandle> solrProcess = SOLRRunner.findProcessRunningFrom(getSOLRPath());
+                if (solrProcess.isPresent()) {
+                    getLog().warn("The SOLR archive was changed, but SOLR (PID " + solrProcess.get().pid()
+                        + ") runs from " + getSOLRPath() + ". The installation is kept, it is replaced by a later "
+                        + "build with refreshSolrArchive, when no SOLR runs from it.");
+                    return;
+                }
+            }
+            deleteStagingLeftovers();
+            Path stagingPath = Files.createTempDirectory(getLocalRepoPath(), getStagingPrefix());
+            try {
+                if (!isSOLRZipExisting()) {
+                    getLog().debug("Download " + getSolrTgzFileName() + " because it does not exists!");
+                    if (Boolean.TRUE.equals(streamingExtract)) {
+                        downloadTGZ(stagingPath);
+                    } else {
+                        downloadTGZ();
+                        extractSolrTgz(stagingPath);
+                    }
+                } else {
+                    extractSolrTgz(stagingPath);
+                }
+                publishInstallation(stagingPath);
+            } finally {
+                deleteRecursively(stagingPath);
+            }
+        } catch (IOException e) {
+            throw new MojoFailureException("Error while installing SOLR to " + getSOLRPath(), e);
+        }
+    }
+
+    /**
+     * Writes the manifest into the staging directory and moves it to the final installation path. An existing
+     * installation is removed first. That is either an outdated installation, which no SOLR runs from, or an
+     * incomplete folder, which an older version of this plugin left behind when it crashed while extracting directly
+     * to the final path.
+     */
+    private void publishInstallation(Path stagingPath) throws IOException, MojoFailureException {
+        writeInstallManifest(stagingPath);
+
+        Path solrPath = getSOLRPath();
+        if (Files.exists(solrPath)) {
+            if (isSOLRExecutableExisting()) {
+                getLog().info("Replacing the installation " + solrPath + ", the SOLR archive was changed");
+            } else {
+                getLog().info("Removing incomplete installation " + solrPath);
+            }
+            Path stalePath = stagingPath.resolveSibling(stagingPath.getFileName() + ".stale");
+            Files.move(solrPath, stalePath, StandardCopyOption.ATOMIC_MOVE);
+            deleteRecursively(stalePath);
+        }
+        Files.move(stagingPath, solrPath, StandardCopyOption.ATOMIC_MOVE);
+        getLog().info("Installed SOLR " + solrVersionString + " to " + solrPath);
+    }
+
+    private void writeInstallManifest(Path installPath) throws IOException, MojoFailureException {
+        Properties manifest = new Properties();
+        manifest.setProperty("version", solrVersionString);
+        manifest.setProperty("archive", getSolrTgzFileName());
+        manifest.setProperty("installed", Instant.now().toString());
+        manifest.setProperty("extractExcludes", String.join(",", getExtractExcludes()));
+        manifest.setProperty("extractIncludes", String.join(",", getExtractIncludes()));
+        Path tgzPath = getTGZPath();
+        if (Files.exists(tgzPath)) {
+            manifest.setProperty("archiveSize", String.valueOf(Files.size(tgzPath)));
+            manifest.setProperty("archiveLastModified", String.valueOf(Files.getLastModifiedTime(tgzPath).toMillis()));
+        }
+        Path tempManifestPath = Files.createTempFile(installPath, INSTALL_MANIFEST, ".tmp");
+        try (OutputStream os = Files.newOutputStream(tempManifestPath)) {
+            manifest.store(os, "SOLR installation of the solr-runner-maven-plugin");
+        }
+        Files.move(tempManifestPath, installPath.resolve(INSTALL_MANIFEST), StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return true if the installation was extracted from another archive than the one in the local repository. An
+     * installation whose manifest does not record the archive is not outdated.
+     */
+    private boolean isInstallationOutdated() throws IOException, MojoFailureException {
+        Properties manifest = new Properties();
+        try (Reader reader = Files.newBufferedReader(getSOLRPath().resolve(INSTALL_MANIFEST))) {
+            manifest.load(reader);
+        }
+        Path tgzPath = getTGZPath();
+        String archiveSize = manifest.getProperty("archiveSize");
+        if (archiveSize == null || !Files.exists(tgzPath)) {
+            return false;
+        }
+        return !archiveSize.equals(String.valueOf(Files.size(tgzPath))) || !String.valueOf(
+            Files.getLastModifiedTime(tgzPath).toMillis()).equals(manifest.getProperty("archiveLastModified"));
+    }
+
+    /**
+     * Removes staging directories of builds that crashed while installing. Must only be called with the install
+     * lock held.
+     */
+    private void deleteStagingLeftovers() throws IOException, MojoFailureException {
+        String stagingPrefix = getStagingPrefix();
+        try (Stream<Path> paths = Files.list(getLocalRepoPath())) {
+            for (Path leftover : paths.filter(p -> p.getFileName().toString().startsWith(stagingPrefix)).toList()) {
+                getLog().info("Removing leftover of an interrupted installation " + leftover);
+                deleteRecursively(leftover);
             }
-            extractSolrTgz();
         }
     }
 
     protected void downloadTGZ() throws MojoFailureException {
+        downloadTGZ(null);
+    }
+
+    /**
+     * Downloads the SOLR archive to the local repository.
+     * @param extractTo if not null, the archive is extracted to this directory from the response body while it is
+     *                  written to the local repository
+     */
+    protected void downloadTGZ(Path extractTo) throws MojoFailureException {
+        downloadTGZ(extractTo, false);
+    }
+
+    /**
+     * Downloads the SOLR archive to the local repository.
+     * @param extractTo if not null, the archive is extracted to this directory from the response body while it is
+     *                  written to the local repository
+     * @param revalidate if true, the request is conditional on the validators stored for the cached archive
+     * @return false if the cached archive was revalidated and is still up to date
+     */
+    protected boolean downloadTGZ(Path extractTo, boolean revalidate) throws MojoFailureException {
+        boolean extract = extractTo != null;
         String solrTgzFileName = getSolrTgzFileName();
-        String downloadPath = getDownloadPath();
-        URI mirrorURI = solrMirrorURL.resolve(downloadPath + solrTgzFileName);
 
         List<Exception> supressed = new ArrayList<>();
         Path tgzPath = getTGZPath();
-        try (HttpClient downloader = HttpClient.newBuilder()
-            .followRedirects(HttpClient.Redirect.NORMAL)
-            .build()) {
-            HttpRequest downloadRequest = HttpRequest.newBuilder().uri(mirrorURI).build();
+        HttpClient downloader = SharedHttpClient.get();
+        try {
+            List<URI> downloadURIs = getDownloadURIs();
+            if (Boolean.TRUE.equals(raceMirrors) && downloadURIs.size() > 1) {
+                SourceRace race = new SourceRace(downloader, downloadURIs);
+                race.setLog(getLog());
+                downloadURIs = race.rank();
+            }
+            if (!extract && !revalidate && parallelDownloads != null && parallelDownloads > 1) {
+                if (downloadRanges(downloader, downloadURIs, tgzPath, fetchPublishedChecksum(downloader))) {
+                    return true;
+                }
+            }
             HttpResponse<InputStream> response = null;
-            try {
-                getLog().debug("Downloading " + downloadRequest.uri());
-                response = downloader.send(downloadRequest, HttpResponse.BodyHandlers.ofInputStream());
-                if (response.statusCode() != 200) {
-                    getLog().info("Apache mirror does not provide selected SOLR version.");
+            URI responseURI = null;
+            List<IOException> sourceErrors = new ArrayList<>();
+            for (URI downloadURI : downloadURIs) {
+                HttpRequest.Builder requestBuilder = HttpRequest.newBuilder().uri(downloadURI);
+                if (revalidate) {
+                    getConditionalHeaders(downloadURI).forEach(requestBuilder::header);
+                }
+                HttpRequest downloadRequest = requestBuilder.build();
+                try {
+                    getLog().debug("Downloading " + downloadRequest.uri());
+                    response = downloader.send(downloadRequest, HttpResponse.BodyHandlers.ofInputStream());
+                    if (response.statusCode() == 200) {
+                        responseURI = downloadURI;
+                        break;
+                    }
+                    if (response.statusCode() == 304) {
+                        getLog().info(tgzPath + " is up to date.");
+                        response.body().close();
+                        storeValidators(downloadURI, response);
+                        return false;
+                    }
+                    getLog().info(downloadURI.getHost() + " does not provide selected SOLR version.");
+                    response.body().close();
                     response = null;
+                } catch (IOException e) {
+                    getLog().error(e.getMessage());
+                    sourceErrors.add(e);
                 }
-            } catch (IOException e) {
-                getLog().error(e.getMessage());
-                supressed.add(e);
             }
             if (response == null) {
-                URI archiveURI = solrArchiveURL.resolve(downloadPath + solrTgzFileName);
-                downloadRequest = HttpRequest.newBuilder().uri(archiveURI).build();
-                getLog().debug("Downloading " + downloadRequest.uri());
-                response = downloader.send(downloadRequest, HttpResponse.BodyHandlers.ofInputStream());
-                if (response.statusCode() != 200) {
-                    throw new MojoFailureException("Could not download selected SOLR version: " + solrVersionString);
-                }
+                MojoFailureException e = new MojoFailureException(
+                    "Could not download selected SOLR version: " + solrVersionString);
+                sourceErrors.forEach(e::addSuppressed);
+                throw e;
             }
+            String publishedChecksum = fetchPublishedChecksum(downloader);
+            Path tgzDownloadPath = getTGZDownloadPath();
+            MessageDigest digest = ArchiveChecksum.newDigest();
             try (InputStream is = response.body()) {
                 getLog().info("Downloading " + response.uri() + " to " + tgzPath.toString());
-                Files.copy(is, tgzPath, StandardCopyOption.REPLACE_EXISTING);
+                try (OutputStream os = new DigestOutputStream(Files.newOutputStream(tgzDownloadPath), digest)) {
+                    if (extract) {
+                        getLog().info("Extracting " + response.uri() + " to " + extractTo + " \u2026");
+                        extractSolrTgz(new TeeInputStream(is, os), extractTo);
+                    } else {
+                        is.transferTo(os);
+                    }
+                }
+                String checksum = ArchiveChecksum.toHex(digest);
+                if (!isChecksumMatching(checksum, publishedChecksum)) {
+                    if (extract) {
+                        deleteRecursively(extractTo);
+                    }
+                    throw new MojoFailureException("Downloaded " + solrTgzFileName + " does not match the published "
+                        + ArchiveChecksum.ALGORITHM + " checksum.");
+                }
+                Files.move(tgzDownloadPath, tgzPath, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+                // segments of a failed parallel download are not needed anymore
+                RangeDownloader.deletePartialDownload(tgzPath);
                 FileTime lastModified = getLastModifiedFileTime(response);
                 if (lastModified != null) {
                     Files.setLastModifiedTime(tgzPath, lastModified);
                 }
+                ArchiveChecksum.writeMarker(tgzPath, checksum, publishedChecksum != null);
+                storeValidators(responseURI, response);
             } catch (IOException e) {
                 getLog().error(e.getMessage());
                 supressed.add(e);
+            } finally {
+                Files.deleteIfExists(tgzDownloadPath);
             }
         } catch (InterruptedException | IOException e) {
             getLog().error(e.getMessage());
@@ -146,6 +507,158 @@ abstract class AbstractSolrMojo extends AbstractMojo {
             supressed.forEach(e::addSuppressed);
             throw e;
         }
+        return true;
+    }
+
+    /**
+     * @return If-None-Match and If-Modified-Since headers for the validators stored for the source. If the source has
+     * no validators, the modification time of the archive is used, which was set from Last-Modified.
+     */
+    private Map<String, String> getConditionalHeaders(URI source) throws IOException, MojoFailureException {
+        Map<String, String> headers = new LinkedHashMap<>();
+        Properties validators = loadValidators();
+        String etag = validators.getProperty(source + ".etag");
+        if (etag != null) {
+            headers.put("If-None-Match", etag);
+        }
+        String lastModified = validators.getProperty(source + ".lastModified");
+        if (lastModified == null) {
+            lastModified = DateTimeFormatter.RFC_1123_DATE_TIME.format(
+                Files.getLastModifiedTime(getTGZPath()).toInstant().atZone(ZoneOffset.UTC));
+        }
+        headers.put("If-Modified-Since", lastModified);
+        return headers;
+    }
+
+    /**
+     * Stores ETag and Last-Modified of a response next to the cached archive. They are stored per source, because
+     * the ETag of one mirror never matches on another one. Validators that are missing in the response are kept.
+     */
+    private void storeValidators(URI source, HttpResponse<?> response) throws IOException, MojoFailureException {
+        Properties validators = loadValidators();
+        response.headers().firstValue("ETag").ifPresent(etag -> validators.setProperty(source + ".etag", etag));
+        response.headers().firstValue("Last-Modified")
+            .ifPresent(lastModified -> validators.setProperty(source + ".lastModified", lastModified));
+        Path validatorsPath = getTGZValidatorsPath();
+        Path tempValidatorsPath = validatorsPath.resolveSibling(validatorsPath.getFileName() + ".tmp");
+        try (OutputStream os = Files.newOutputStream(tempValidatorsPath)) {
+            validators.store(os, "HTTP validators of " + getSolrTgzFileName() + " per source");
+        }
+        Files.move(tempValidatorsPath, validatorsPath, StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private Properties loadValidators() throws IOException, MojoFailureException {
+        Path validatorsPath = getTGZValidatorsPath();
+        Properties validators = new Properties();
+        if (Files.exists(validatorsPath)) {
+            try (Reader reader = Files.newBufferedReader(validatorsPath)) {
+                validators.load(reader);
+            }
+        }
+        return validators;
+    }
+
+    /**
+     * Tries to download the SOLR archive with concurrent range requests from the first URI that provides it. A failed
+     * download is resumed from the segments that are already complete, before falling back to a single stream.
+     * @return false if the archive has to be downloaded with a single stream
+     */
+    private boolean downloadRanges(HttpClient downloader, List<URI> uris, Path tgzPath, String publishedChecksum)
+        throws InterruptedException, MojoFailureException {
+        for (URI uri : uris) {
+            RangeDownloader rangeDownloader = new RangeDownloader(downloader, uri, tgzPath);
+            rangeDownloader.setParallelDownloads(parallelDownloads);
+            rangeDownloader.setLog(getLog());
+            try {
+                getLog().debug("Probing " + uri + " for range requests");
+                if (downloadRanges(rangeDownloader)) {
+                    getLog().info("Downloaded " + uri + " to " + tgzPath + " with " + parallelDownloads
+                        + " parallel requests");
+                    String checksum = ArchiveChecksum.toHex(rangeDownloader.getDigest());
+                    if (!isChecksumMatching(checksum, publishedChecksum)) {
+                        Files.delete(tgzPath);
+                        throw new MojoFailureException("Downloaded " + getSolrTgzFileName()
+                            + " does not match the published " + ArchiveChecksum.ALGORITHM + " checksum.");
+                    }
+                    FileTime lastModified = getLastModifiedFileTime(rangeDownloader.getProbeResponse());
+                    if (lastModified != null) {
+                        Files.setLastModifiedTime(tgzPath, lastModified);
+                    }
+                    ArchiveChecksum.writeMarker(tgzPath, checksum, publishedChecksum != null);
+                    storeValidators(uri, rangeDownloader.getProbeResponse());
+                    return true;
+                }
+                if (rangeDownloader.getProbeResponse() != null
+                    && rangeDownloader.getProbeResponse().statusCode() == 200) {
+                    // the file exists but range requests are not supported, so the next source won't help
+                    return false;
+                }
+            } catch (IOException e) {
+                getLog().warn("Parallel download of " + uri + " failed, falling back to a single stream: "
+                    + e.getMessage());
+                return false;
+            }
+        }
+        return false;
+    }
+
+    private boolean downloadRanges(RangeDownloader rangeDownloader) throws IOException, InterruptedException {
+        for (int attempt = 1;; attempt++) {
+            // the digest is computed again from the segments on disk by each attempt
+            rangeDownloader.setDigest(ArchiveChecksum.newDigest());
+            try {
+                return rangeDownloader.download();
+            } catch (IOException e) {
+                if (attempt == RANGE_DOWNLOAD_ATTEMPTS) {
+                    throw e;
+                }
+                getLog().warn("Parallel download failed, resuming it: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Fetches the checksum Apache publishes next to the SOLR archive.
+     * @return the checksum or null if no source provides it
+     */
+    private String fetchPublishedChecksum(HttpClient client) throws InterruptedException {
+        if (!Boolean.TRUE.equals(verifyChecksum)) {
+            return null;
+        }
+        for (URI uri : getDownloadURIs()) {
+            URI checksumURI = URI.create(uri + ArchiveChecksum.PUBLISHED_SUFFIX);
+            try {
+                HttpResponse<String> response = client.send(HttpRequest.newBuilder(checksumURI).build(),
+                    HttpResponse.BodyHandlers.ofString());
+                if (response.statusCode() != 200) {
+                    getLog().debug(checksumURI + " returned " + response.statusCode());
+                    continue;
+                }
+                String checksum = ArchiveChecksum.parsePublished(response.body(), getSolrTgzFileName());
+                if (checksum != null) {
+                    return checksum;
+                }
+                getLog().warn("Could not parse checksum file " + checksumURI);
+            } catch (IOException e) {
+                getLog().debug("Could not fetch " + checksumURI + ": " + e.getMessage());
+            }
+        }
+        getLog().warn("No published checksum found for " + getSolrTgzFileName() + ", it will not be verified.");
+        return null;
+    }
+
+    private boolean isChecksumMatching(String checksum, String publishedChecksum) {
+        if (publishedChecksum == null) {
+            return true;
+        }
+        if (publishedChecksum.equals(checksum)) {
+            getLog().debug(ArchiveChecksum.ALGORITHM + " checksum verified: " + checksum);
+            return true;
+        }
+        getLog().error(ArchiveChecksum.ALGORITHM + " checksum mismatch, expected " + publishedChecksum + " but was "
+            + checksum);
+        return false;
     }
 
     public FileTime getLastModifiedFileTime(HttpResponse<?> response) {
@@ -166,82 +679,92 @@ abstract class AbstractSolrMojo extends AbstractMojo {
     protected boolean isSOLRZipExisting() throws MojoFailureException {
         Path solrTGZPath = getTGZPath();
         getLog().debug("Checking if SOLR archive exists: " + solrTGZPath.toString());
-        return Files.exists(solrTGZPath);
+        if (!Files.exists(solrTGZPath)) {
+            return false;
+        }
+        if (!Boolean.TRUE.equals(verifyChecksum)) {
+            return true;
+        }
+        try {
+            if (ArchiveChecksum.isVerified(solrTGZPath)) {
+                return true;
+            }
+            // archives downloaded by older versions of this plugin have to be hashed once, archives downloaded
+            // while no published checksum was available are compared with the checksum recorded in the marker
+            String checksum = ArchiveChecksum.getRecordedChecksum(solrTGZPath);
+            if (checksum == null) {
+                getLog().info("Verifying checksum of " + solrTGZPath);
+                checksum = ArchiveChecksum.hash(solrTGZPath);
+            }
+            String publishedChecksum = fetchPublishedChecksum(SharedHttpClient.get());
+            if (!isChecksumMatching(checksum, publishedChecksum)) {
+                getLog().warn(solrTGZPath + " is corrupt and will be downloaded again.");
+                Files.delete(solrTGZPath);
+                return false;
+            }
+            ArchiveChecksum.writeMarker(solrTGZPath, checksum, publishedChecksum != null);
+            return true;
+        } catch (IOException | InterruptedException e) {
+            throw new MojoFailureException("Error while verifying " + solrTGZPath, e);
+        }
     }
 
+    /**
+     * @return true if SOLR is installed. Installations are published with a manifest after they were completely
+     * extracted.
+     */
     protected boolean isSOLRExecutableExisting() throws MojoFailureException {
-        return Files.exists(getSOLRExecutablePath());
+        return Files.exists(getSOLRExecutablePath()) && Files.exists(getSOLRPath().resolve(INSTALL_MANIFEST));
     }
 
-    protected void extractSolrTgz() throws MojoFailureException {
-        Log log = getLog();
+    /**
+     * Takes over an installation without manifest, which an older version of this plugin extracted directly to the
+     * final path, by writing the manifest for it. Such a folder may be incomplete if that build crashed, so only a
+     * folder with bin/solr, the start.jar and the web application of SOLR is taken over. Must be called with the
+     * install lock held.
+     * @return true if the installation was taken over
+     */
+    private boolean takeOverInstallation() throws MojoFailureException {
         Path solrPath = getSOLRPath();
-        String solrFolderName = getSOLRFolderName();
-        log.info("Extracting " + getTGZPath() + " to " + solrPath + " \u2026");
-
-        try (InputStream is = Files.newInputStream(getTGZPath());
-            TarArchiveInputStream tar = new TarArchiveInputStream(new GzipCompressorInputStream(is))) {
-            Files.createDirectories(solrPath);
-            ArchiveEntry entry;
-            while ((entry = tar.getNextEntry()) != null) {
-                if (!(entry instanceof TarArchiveEntry tarEntry)) {
-                    throw new IllegalStateException(
-                        "Not a tar entry: " + entry.getName() + " " + entry.getClass().getName());
-                }
-                String name = entry.getName();
-
-                if (name.startsWith(solrFolderName)) {
-                    name = name.substring(solrFolderName.length());
-                }
-
-                if (name.startsWith("/")) {
-                    name = name.substring(1);
-                }
-
-                Path target = solrPath.resolve(name);
-
-                if (entry.isDirectory()) {
-                    Files.createDirectories(target);
-                    applyAttributes(target, tarEntry);
-                } else {
-                    log.debug("Extract file: " + name);
-                    Files.createDirectories(target.getParent());
-                    Files.copy(tar, target, StandardCopyOption.REPLACE_EXISTING);
-                    applyAttributes(target, tarEntry);
-                }
-            }
+        Path serverPath = solrPath.resolve("server");
+        if (!Files.exists(getSOLRExecutablePath()) || !Files.isRegularFile(serverPath.resolve("start.jar"))
+            || !Files.isDirectory(serverPath.resolve("solr-webapp"))) {
+            return false;
+        }
+        getLog().info("Taking over the installation " + solrPath + " of an older plugin version");
+        try {
+            writeInstallManifest(solrPath);
         } catch (IOException e) {
-            throw new MojoFailureException("Error while reading TGZ-File!", e);
+            throw new MojoFailureException("Error while writing the manifest of " + solrPath, e);
         }
+        return true;
     }
 
-    private void applyAttributes(Path target, TarArchiveEntry tarEntry) throws IOException {
-        PosixFileAttributeView posixAttributes = Files.getFileAttributeView(target, PosixFileAttributeView.class);
-        if (posixAttributes != null) {
-            posixAttributes.setPermissions(mapToPosixFilePermissions(tarEntry));
+    protected void extractSolrTgz(Path target) throws MojoFailureException {
+        getLog().info("Extracting " + getTGZPath() + " to " + target + " \u2026");
+        try (InputStream is = Files.newInputStream(getTGZPath())) {
+            extractSolrTgz(is, target);
+        } catch (IOException e) {
+            throw new MojoFailureException("Error while reading TGZ-File!", e);
         }
-        Files.setLastModifiedTime(target, tarEntry.getLastModifiedTime());
-    }
-
-    private static EnumSet<PosixFilePermission> mapToPosixFilePermissions(TarArchiveEntry entry) {
-        int mode = entry.getMode();
-        return EnumSet.allOf(PosixFilePermission.class).stream()
-            .filter(permission -> (mode & getPermissionBit(permission)) != 0)
-            .collect(Collectors.toCollection(() -> EnumSet.noneOf(PosixFilePermission.class)));
     }
 
-    private static int getPermissionBit(PosixFilePermission permission) {
-        return switch (permission) {
-            case OWNER_READ -> 0400;
-            case OWNER_WRITE -> 0200;
-            case OWNER_EXECUTE -> 0100;
-            case GROUP_READ -> 0040;
-            case GROUP_WRITE -> 0020;
-            case GROUP_EXECUTE -> 0010;
-            case OTHERS_READ -> 0004;
-            case OTHERS_WRITE -> 0002;
-            case OTHERS_EXECUTE -> 0001;
-        };
+    /**
+     * Extracts the SOLR archive from the given stream. The stream is read up to its end, but not closed.
+     */
+    protected void extractSolrTgz(InputStream is, Path target) throws MojoFailureException {
+        TarExtractor extractor = new TarExtractor(target, getSOLRFolderName());
+        List<String> excludes = getExtractExcludes();
+        if (!excludes.isEmpty()) {
+            extractor.setFilter(new GlobFilter(getExtractIncludes(), excludes));
+        }
+        extractor.setParallel(Boolean.TRUE.equals(parallelExtract));
+        extractor.setLog(getLog());
+        try {
+            extractor.extract(is);
+        } catch (IOException e) {
+            throw new MojoFailureException("Error while reading TGZ-File!", e);
+        }
     }
 
     protected SOLRRunner buildRunner() throws MojoFailureException {
@@ -252,13 +775,163 @@ abstract class AbstractSolrMojo extends AbstractMojo {
         solrRunner.setSolrHome(this.getSOLRHome().toString());
         solrRunner.setCloudMode(this.cloudMode);
         solrRunner.setSolrVersion(solrVersionString);
+        solrRunner.setMemory(solrMemory);
+        solrRunner.setRuntimeDirectory(getSOLRRuntimeDirectory());
         if (this.additionalParams != null && !this.additionalParams.isEmpty()) {
             solrRunner.setAdditionalParams(this.additionalParams);
         }
+        solrRunner.setLaunchMode(switch (launchMode) {
+            case "script" -> SOLRRunner.LaunchMode.SCRIPT;
+            case "direct" -> SOLRRunner.LaunchMode.DIRECT;
+            case "embedded" -> SOLRRunner.LaunchMode.EMBEDDED;
+            default -> throw new MojoFailureException("Unknown launchMode '" + launchMode
+                + "', use script, direct or embedded");
+        });
+        if (solrRunner.getLaunchMode() != SOLRRunner.LaunchMode.SCRIPT && this.additionalParams != null
+            && !this.additionalParams.isEmpty()) {
+            getLog().warn("additionalParams are passed to bin/solr, they are ignored in the " + launchMode + " mode");
+        }
 
         return solrRunner;
     }
 
+    /**
+     * @return the pool of ports or null, if solrPort is used
+     */
+    protected PortPool getPortPool() throws MojoFailureException {
+        if (solrPortPool == null || solrPortPool.isBlank()) {
+            return null;
+        }
+        String[] range = solrPortPool.trim().split("-", 2);
+        int firstPort;
+        int lastPort;
+        try {
+            firstPort = Integer.parseInt(range[0].trim());
+            lastPort = range.length > 1 ? Integer.parseInt(range[1].trim()) : firstPort;
+        } catch (NumberFormatException e) {
+            throw new MojoFailureException("solrPortPool has to be a range like 8983-9082, but is " + solrPortPool);
+        }
+        if (firstPort > lastPort) {
+            throw new MojoFailureException("The solrPortPool " + solrPortPool + " is empty");
+        }
+        PortPool pool = new PortPool(getLocalRepoPath().resolve(PORT_REGISTRY), firstPort, lastPort);
+        pool.setLog(getLog());
+        return pool;
+    }
+
+    /**
+     * @return the owner of reserved ports, the SOLR home
+     */
+    protected String getPortOwner() {
+        return getSOLRHome().toAbsolutePath().normalize().toString();
+    }
+
+    /**
+     * Uses the port from the pool that an earlier goal of this build reserved, or that an earlier build reserved
+     * for the SOLR home.
+     * @return false if a pool is used, but no port is reserved
+     */
+    protected boolean useReservedPort() throws MojoFailureException {
+        PortPool pool = getPortPool();
+        if (pool == null) {
+            return true;
+        }
+        String exportedPort = project.getProperties().getProperty(solrPropertyPrefix + ".port");
+        try {
+            Integer port = exportedPort != null ? Integer.valueOf(exportedPort) : pool.find(getPortOwner());
+            if (port == null) {
+                return false;
+            }
+            this.solrPort = port;
+            return true;
+        } catch (IOException | NumberFormatException e) {
+            throw new MojoFailureException("Could not read the port reserved for " + getPortOwner(), e);
+        }
+    }
+
+    /**
+     * Sets the port and the URL of SOLR as project properties, so they can be passed to the tests.
+     */
+    protected void exportProperties() {
+        Properties properties = project.getProperties();
+        properties.setProperty(solrPropertyPrefix + ".port", String.valueOf(this.solrPort));
+        properties.setProperty(solrPropertyPrefix + ".url", "http://localhost:" + this.solrPort + "/solr");
+        if (Boolean.TRUE.equals(cloudMode)) {
+            properties.setProperty(solrPropertyPrefix + ".zkHost", "localhost:" + (this.solrPort + 1000));
+        }
+    }
+
+    /**
+     * @return a runner for every node, the first one runs the embedded ZooKeeper in cloud mode
+     */
+    protected List<SOLRRunner> buildNodeRunners() throws MojoFailureException {
+        int nodes = getCloudNodes();
+        List<SOLRRunner> runners = new ArrayList<>();
+        for (int node = 0; node < nodes; node++) {
+            SOLRRunner runner = buildRunner();
+            runner.setPort(this.solrPort + node);
+            if (node > 0) {
+                runner.setSolrHome(getNodeSOLRHome(node).toString());
+                runner.setZkHost("localhost:" + (this.solrPort + 1000));
+            }
+            runners.add(runner);
+        }
+        return runners;
+    }
+
+    protected int getCloudNodes() throws MojoFailureException {
+        int nodes = cloudNodes == null ? 1 : cloudNodes;
+        if (nodes < 1) {
+            throw new MojoFailureException("cloudNodes has to be at least 1, but is " + nodes);
+        }
+        if (nodes > 1 && !Boolean.TRUE.equals(cloudMode)) {
+            throw new MojoFailureException("cloudNodes > 1 requires cloudMode");
+        }
+        if (nodes > 1 && "embedded".equals(launchMode)) {
+            throw new MojoFailureException("cloudNodes > 1 is not supported in the embedded mode, "
+                + "the nodes would share the system properties of the build");
+        }
+        return nodes;
+    }
+
+    /**
+     * @return the directory that holds the PID file, the fingerprint and the logs of the instances, by default
+     * the SOLR home with the suffix -runtime
+     */
+    protected Path getSOLRRuntimeDirectory() {
+        if (solrRuntimeDirectory != null) {
+            return solrRuntimeDirectory.toPath().toAbsolutePath();
+        }
+        Path solrHome = getSOLRHome().toAbsolutePath();
+        return solrHome.resolveSibling(solrHome.getFileName() + "-runtime");
+    }
+
+    /**
+     * @return the SOLR home of a further cloud node
+     */
+    protected Path getNodeSOLRHome(int node) {
+        Path solrHome = getSOLRHome().toAbsolutePath();
+        return solrHome.resolveSibling(solrHome.getFileName() + "-node" + node);
+    }
+
+    /**
+     * @return the settings that SOLR is started with, they are part of the fingerprint of the instance
+     */
+    protected Map<String, String> getInstanceSettings() throws MojoFailureException {
+        Map<String, String> settings = new LinkedHashMap<>();
+        settings.put("solrVersion", solrVersionString);
+        settings.put("solrPath", getSOLRPath().toString());
+        settings.put("solrHome", getSOLRHome().toAbsolutePath().toString());
+        settings.put("solrPort", String.valueOf(solrPort));
+        settings.put("cloudMode", String.valueOf(cloudMode));
+        settings.put("cloudNodes", String.valueOf(cloudNodes));
+        settings.put("launchMode", launchMode);
+        settings.put("solrMemory", Objects.toString(solrMemory, ""));
+        settings.put("additionalVMParam", Objects.toString(additionalVMParam, ""));
+        settings.put("additionalParams", Objects.toString(additionalParams, ""));
+        return settings;
+    }
+
     public Path getSOLRHome() {
         return this.solrHome.toPath();
     }
@@ -275,12 +948,90 @@ abstract class AbstractSolrMojo extends AbstractMojo {
         return solr;
     }
 
+    private static void deleteRecursively(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(path)) {
+            for (Path p : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(p);
+            }
+        }
+    }
+
+    /**
+     * @return the URIs of the SOLR archive on all configured sources, in the order they are tried
+     */
+    private List<URI> getDownloadURIs() {
+        String path = getDownloadPath() + getSolrTgzFileName();
+        List<URI> uris = new ArrayList<>();
+        uris.add(solrMirrorURL.resolve(path));
+        if (additionalSolrMirrorURLs != null) {
+            additionalSolrMirrorURLs.stream().map(mirror -> mirror.resolve(path)).forEach(uris::add);
+        }
+        uris.add(solrArchiveURL.resolve(path));
+        return uris;
+    }
+
+    private List<String> getExtractExcludes() throws MojoFailureException {
+        List<String> excludes = new ArrayList<>();
+        switch (extractPreset == null ? "full" : extractPreset) {
+            case "full" -> {
+            }
+            case "minimal" -> excludes.addAll(MINIMAL_EXTRACT_EXCLUDES);
+            default -> throw new MojoFailureException("Unknown extractPreset " + extractPreset
+                + ", supported are full and minimal.");
+        }
+        if (extractExcludes != null) {
+            excludes.addAll(extractExcludes);
+        }
+        return excludes;
+    }
+
+    private List<String> getExtractIncludes() {
+        return extractIncludes == null ? List.of() : extractIncludes;
+    }
+
+    /**
+     * Installations with extract filters get their own folder, so builds with different filters don't share an
+     * installation that lacks files one of them needs.
+     */
+    private String getSOLRInstallFolderName() throws MojoFailureException {
+        List<String> excludes = getExtractExcludes();
+        if (excludes.isEmpty()) {
+            return getSOLRFolderName();
+        }
+        String filterSpec = "excludes=" + excludes + ";includes=" + getExtractIncludes();
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(filterSpec.getBytes(StandardCharsets.UTF_8));
+            return getSOLRFolderName() + "-" + HexFormat.of().formatHex(hash, 0, FILTER_HASH_BYTES);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not supported by this JVM", e);
+        }
+    }
+
+    private String getStagingPrefix() throws MojoFailureException {
+        return getSOLRInstallFolderName() + ".staging.";
+    }
+
+    private Path getInstallLockPath() throws MojoFailureException {
+        return getLocalRepoPath().resolve(getSOLRFolderName() + ".lock");
+    }
+
     private Path getTGZPath() throws MojoFailureException {
         return getLocalRepoPath().resolve(getSolrTgzFileName());
     }
 
+    private Path getTGZValidatorsPath() throws MojoFailureException {
+        return getLocalRepoPath().resolve(getSolrTgzFileName() + ".validators");
+    }
+
+    private Path getTGZDownloadPath() throws MojoFailureException {
+        return getLocalRepoPath().resolve(getSolrTgzFileName() + ".download");
+    }
+
     public Path getSOLRPath() throws MojoFailureException {
-        return getLocalRepoPath().resolve(getSOLRFolderName());
+        return getLocalRepoPath().resolve(getSOLRInstallFolderName());
     }
 
     private String getSolrTgzFileName() {
@@ -291,6 +1042,10 @@ abstract class AbstractSolrMojo extends AbstractMojo {
         return "solr-" + solrVersionString;
     }
 
+    protected RepositorySystemSession getRepositorySystemSession() {
+        return repositorySystemSession;
+    }
+
     public Path getLocalRepoPath() throws MojoFailureException {
         return repositorySystemSession.getLocalRepository().getBasedir().toPath();
     }
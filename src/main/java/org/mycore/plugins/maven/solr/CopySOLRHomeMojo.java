@@ -20,24 +20,89 @@ package org.mycore.plugins.maven.solr;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.StandardCopyOption;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
 
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
 import org.apache.maven.plugins.annotations.Mojo;
 import org.apache.maven.plugins.annotations.Parameter;
+import org.mycore.plugins.maven.solr.tools.CopyManifest;
+import org.mycore.plugins.maven.solr.tools.GlobFilter;
 
 @Mojo(name = "copyHome")
 public class CopySOLRHomeMojo extends AbstractSolrMojo {
 
+    private static final String COPY_MANIFEST = ".solr-runner-copy.properties";
+
+    private static final List<String> DEFAULT_ALWAYS_COPIED_FILES = List.of("**/core.properties",
+        "**/managed-schema", "**/managed-schema.xml", "**/configoverlay.json", "**/params.json", "**/security.json",
+        "**/_rest_managed*.json", "**/data/**");
+
     @Parameter(property = "solrHomeTemplate", required = true)
     private File solrHomeTemplate;
 
+    /**
+     * If true, files that did not change since the last copy are skipped. A file is copied again if the template
+     * file or the copy in the solr home was changed.
+     */
+    @Parameter(property = "incrementalCopy", required = false, defaultValue = "true")
+    private Boolean incrementalCopy;
+
+    /**
+     * If true, a hash of each template file is stored, so files whose modification time changed but whose content
+     * did not are skipped, too.
+     */
+    @Parameter(property = "hashTemplateFiles", required = false, defaultValue = "false")
+    private Boolean hashTemplateFiles;
+
+    /**
+     * If true, files that were copied by an earlier build but were removed from the template are deleted from the
+     * solr home. Files that were not copied from the template are never deleted.
+     */
+    @Parameter(property = "pruneStaleFiles", required = false, defaultValue = "false")
+    private Boolean pruneStaleFiles;
+
+    /**
+     * How template files get into the solr home: <code>copy</code> copies them. <code>hardlink</code> creates hard
+     * links to the template files and falls back to copies if the filesystem does not support them.
+     * <code>reflink</code> creates copy-on-write clones with <code>cp --reflink=always</code>, or <code>cp -c</code>
+     * on macOS, on filesystems like Btrfs, XFS and APFS. It falls back to copies if cloning is not supported. Clones
+     * are used for the {@link #alwaysCopiedFiles}, too, because SOLR's changes don't reach the template.
+     */
+    @Parameter(property = "copyStrategy", required = false, defaultValue = "copy")
+    private String copyStrategy;
+
+    /**
+     * Globs of files, relative to the template, that always get real copies because SOLR writes them at runtime.
+     * With hard links, SOLR would otherwise change the template.
+     */
+    @Parameter(property = "alwaysCopiedFiles", required = false)
+    private List<String> alwaysCopiedFiles;
+
+    /**
+     * The number of threads used to copy the files of the template.
+     */
+    @Parameter(property = "copyThreads", required = false, defaultValue = "4")
+    private Integer copyThreads;
+
     protected Path getSOLRHomeTemplate() {
         return this.solrHomeTemplate.toPath();
     }
@@ -46,32 +111,244 @@ public class CopySOLRHomeMojo extends AbstractSolrMojo {
         try {
             Path solrHome = getSOLRHome();
             getLog().info("Copy solr home to " + solrHome.toAbsolutePath().toString());
-            Files.walkFileTree(getSOLRHomeTemplate(), new SimpleFileVisitor<Path>() {
-                @Override public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs)
-                    throws IOException {
-                    String relativeName = getSOLRHomeTemplate().relativize(dir).toString();
-                    Path newDirectoryPath = solrHome.resolve(relativeName);
-                    if (!Files.exists(newDirectoryPath)) {
-                        Files.createDirectories(newDirectoryPath);
+            Files.createDirectories(solrHome);
+            Path manifestPath = solrHome.resolve(COPY_MANIFEST);
+            CopyManifest manifest = CopyManifest.load(manifestPath);
+            List<String> alwaysCopied = alwaysCopiedFiles == null ? DEFAULT_ALWAYS_COPIED_FILES : alwaysCopiedFiles;
+            CopyRun copyRun = new CopyRun(manifest, getCopyStrategy(),
+                alwaysCopied.stream().map(GlobFilter::compile).toList());
+            int threads = copyThreads == null ? 1 : copyThreads;
+            try (ExecutorService executor = threads > 1 ? Executors.newFixedThreadPool(threads) : null) {
+                List<Future<?>> copies = new ArrayList<>();
+                Files.walkFileTree(getSOLRHomeTemplate(), new SimpleFileVisitor<Path>() {
+                    @Override public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs)
+                        throws IOException {
+                        String relativeName = getSOLRHomeTemplate().relativize(dir).toString();
+                        Path newDirectoryPath = solrHome.resolve(relativeName);
+                        if (!Files.exists(newDirectoryPath)) {
+                            Files.createDirectories(newDirectoryPath);
+                        }
+                        return FileVisitResult.CONTINUE;
                     }
-                    return FileVisitResult.CONTINUE;
-                }
 
-                @Override public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-                    String relativeName = getSOLRHomeTemplate().relativize(file).toString();
-                    Path newFilePath = getSOLRHome().resolve(relativeName);
-                    Files.copy(file, newFilePath, StandardCopyOption.REPLACE_EXISTING);
-                    return FileVisitResult.CONTINUE;
+                    @Override public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+                        throws IOException {
+                        if (executor == null) {
+                            syncFile(copyRun, file, attrs);
+                        } else {
+                            copies.add(executor.submit(() -> {
+                                syncFile(copyRun, file, attrs);
+                                return null;
+                            }));
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+                for (Future<?> copy : copies) {
+                    copy.get();
+                }
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException ioException) {
+                    throw ioException;
                 }
-            });
+                throw new MojoFailureException("Error while copying solr home template", e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new MojoFailureException("Interrupted while copying solr home template", e);
+            }
+            int prunedFiles = Boolean.TRUE.equals(pruneStaleFiles)
+                ? pruneStaleFiles(manifest, copyRun.templateFiles) : 0;
+            manifest.store(manifestPath);
+            getLog().info("Copied " + copyRun.copiedFiles + " files (" + copyRun.copiedBytes + " bytes), linked "
+                + copyRun.linkedFiles + " files, cloned " + copyRun.clonedFiles + " files, skipped "
+                + copyRun.skippedFiles + " unchanged files (" + copyRun.skippedBytes + " bytes)"
+                + (prunedFiles > 0 ? ", removed " + prunedFiles + " stale files" : ""));
         } catch (IOException e) {
             throw new MojoFailureException("Error while copying solr home template", e);
         }
     }
 
+    private void syncFile(CopyRun copyRun, Path file, BasicFileAttributes attrs) throws IOException {
+        Path relativePath = getSOLRHomeTemplate().relativize(file);
+        String manifestName = toManifestName(relativePath);
+        Path newFilePath = getSOLRHome().resolve(relativePath.toString());
+        copyRun.templateFiles.add(manifestName);
+        if (Boolean.TRUE.equals(incrementalCopy) && isUnchanged(copyRun.manifest, manifestName, file, attrs,
+            newFilePath)) {
+            copyRun.skippedFiles.incrementAndGet();
+            copyRun.skippedBytes.addAndGet(attrs.size());
+            return;
+        }
+        if (copyRun.strategy == CopyStrategy.HARDLINK && copyRun.linksSupported
+            && copyRun.alwaysCopied.stream().noneMatch(pattern -> pattern.matcher(manifestName).matches())) {
+            try {
+                Files.deleteIfExists(newFilePath);
+                Files.createLink(newFilePath, file);
+                copyRun.linkedFiles.incrementAndGet();
+            } catch (IOException | UnsupportedOperationException e) {
+                getLog().info("Hard links are not supported for " + newFilePath + ", copying instead: " + e);
+                copyRun.linksSupported = false;
+                copy(copyRun, file, attrs, newFilePath);
+            }
+        } else if (copyRun.strategy == CopyStrategy.REFLINK && copyRun.reflinksSupported) {
+            reflink(copyRun, file, attrs, newFilePath);
+        } else {
+            copy(copyRun, file, attrs, newFilePath);
+        }
+        BasicFileAttributes newAttrs = Files.readAttributes(newFilePath, BasicFileAttributes.class);
+        copyRun.manifest.put(manifestName, new CopyManifest.Entry(attrs.size(), attrs.lastModifiedTime().toMillis(),
+            newAttrs.size(), newAttrs.lastModifiedTime().toMillis(),
+            Boolean.TRUE.equals(hashTemplateFiles) ? CopyManifest.hash(file) : null));
+    }
+
+    /**
+     * Clones the file with cp, the JDK has no API for it. If the filesystem or the platform does not support clones,
+     * the file and all further files are copied.
+     */
+    private void reflink(CopyRun copyRun, Path file, BasicFileAttributes attrs, Path newFilePath) throws IOException {
+        List<String> command = getReflinkCommand(file, newFilePath);
+        if (command != null) {
+            // the copy may be a hard link to the template, cp would write into the template then
+            Files.deleteIfExists(newFilePath);
+            Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+            String output = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8).trim();
+            try {
+                if (process.waitFor() == 0) {
+                    copyRun.clonedFiles.incrementAndGet();
+                    return;
+                }
+            } catch (InterruptedException e) {
+                process.destroy();
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while cloning " + file);
+            }
+            getLog().info("Reflinks are not supported for " + newFilePath + ", copying instead: " + output);
+        } else {
+            getLog().info("Reflinks are not supported on " + System.getProperty("os.name") + ", copying instead");
+        }
+        copyRun.reflinksSupported = false;
+        copy(copyRun, file, attrs, newFilePath);
+    }
+
+    /**
+     * @return the command that clones the file or null, if the platform has none
+     */
+    private static List<String> getReflinkCommand(Path file, Path newFilePath) {
+        String os = System.getProperty("os.name").toLowerCase(Locale.ROOT);
+        if (os.contains("linux")) {
+            return List.of("cp", "--reflink=always", "--", file.toString(), newFilePath.toString());
+        }
+        if (os.contains("mac")) {
+            return List.of("cp", "-c", "--", file.toString(), newFilePath.toString());
+        }
+        return null;
+    }
+
+    private void copy(CopyRun copyRun, Path file, BasicFileAttributes attrs, Path newFilePath) throws IOException {
+        Files.copy(file, newFilePath, StandardCopyOption.REPLACE_EXISTING);
+        copyRun.copiedFiles.incrementAndGet();
+        copyRun.copiedBytes.addAndGet(attrs.size());
+    }
+
+    private CopyStrategy getCopyStrategy() throws MojoFailureException {
+        return switch (copyStrategy == null ? "copy" : copyStrategy) {
+            case "copy" -> CopyStrategy.COPY;
+            case "hardlink" -> CopyStrategy.HARDLINK;
+            case "reflink" -> CopyStrategy.REFLINK;
+            default -> throw new MojoFailureException("Unknown copyStrategy " + copyStrategy
+                + ", supported are copy, hardlink and reflink.");
+        };
+    }
+
+    private boolean isUnchanged(CopyManifest manifest, String manifestName, Path file, BasicFileAttributes attrs,
+        Path newFilePath) throws IOException {
+        CopyManifest.Entry entry = manifest.get(manifestName);
+        if (entry == null || !Files.exists(newFilePath) || attrs.size() != entry.templateSize()) {
+            return false;
+        }
+        BasicFileAttributes newAttrs = Files.readAttributes(newFilePath, BasicFileAttributes.class);
+        if (newAttrs.size() != entry.targetSize()
+            || newAttrs.lastModifiedTime().toMillis() != entry.targetModified()) {
+            // the copy was changed, e.g. by SOLR
+            return false;
+        }
+        if (attrs.lastModifiedTime().toMillis() == entry.templateModified()) {
+            return true;
+        }
+        if (Boolean.TRUE.equals(hashTemplateFiles) && entry.hash() != null) {
+            String hash = CopyManifest.hash(file);
+            if (hash.equals(entry.hash())) {
+                manifest.put(manifestName, new CopyManifest.Entry(entry.templateSize(),
+                    attrs.lastModifiedTime().toMillis(), entry.targetSize(), entry.targetModified(), hash));
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private int pruneStaleFiles(CopyManifest manifest, Set<String> templateFiles) throws IOException {
+        int prunedFiles = 0;
+        for (String manifestName : manifest.getNames()) {
+            if (templateFiles.contains(manifestName)) {
+                continue;
+            }
+            Path staleFile = getSOLRHome().resolve(manifestName);
+            getLog().debug("Removing stale file " + staleFile);
+            if (Files.deleteIfExists(staleFile)) {
+                prunedFiles++;
+            }
+            manifest.remove(manifestName);
+        }
+        return prunedFiles;
+    }
+
+    private static String toManifestName(Path relativePath) {
+        return relativePath.toString().replace(relativePath.getFileSystem().getSeparator(), "/");
+    }
+
     @Override
     public void execute() throws MojoExecutionException, MojoFailureException {
         copyHome();
     }
 
+    private enum CopyStrategy {
+        COPY, HARDLINK, REFLINK
+    }
+
+    /**
+     * The state of a single copyHome execution, shared by the copy threads.
+     */
+    private static final class CopyRun {
+
+        private final CopyManifest manifest;
+
+        private final CopyStrategy strategy;
+
+        private final List<Pattern> alwaysCopied;
+
+        private final Set<String> templateFiles = ConcurrentHashMap.newKeySet();
+
+        private final AtomicLong copiedFiles = new AtomicLong();
+
+        private final AtomicLong copiedBytes = new AtomicLong();
+
+        private final AtomicLong linkedFiles = new AtomicLong();
+
+        private final AtomicLong clonedFiles = new AtomicLong();
+
+        private final AtomicLong skippedFiles = new AtomicLong();
+
+        private final AtomicLong skippedBytes = new AtomicLong();
+
+        private volatile boolean linksSupported = true;
+
+        private volatile boolean reflinksSupported = true;
+
+        private CopyRun(CopyManifest manifest, CopyStrategy strategy, List<Pattern> alwaysCopied) {
+            this.manifest = manifest;
+            this.strategy = strategy;
+            this.alwaysCopied = alwaysCopied;
+        }
+    }
+
 }
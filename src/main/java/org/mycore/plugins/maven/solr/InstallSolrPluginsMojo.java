@@ -19,31 +19,116 @@
 package org.mycore.plugins.maven.solr;
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import org.apache.maven.artifact.Artifact;
+import org.apache.maven.artifact.versioning.ComparableVersion;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
-import org.apache.maven.plugin.logging.Log;
+import org.apache.maven.plugins.annotations.Component;
 import org.apache.maven.plugins.annotations.Mojo;
 import org.apache.maven.plugins.annotations.Parameter;
+import org.eclipse.aether.RepositorySystem;
+import org.eclipse.aether.artifact.DefaultArtifact;
+import org.eclipse.aether.collection.CollectRequest;
+import org.eclipse.aether.graph.Dependency;
+import org.eclipse.aether.repository.RemoteRepository;
+import org.eclipse.aether.resolution.ArtifactResult;
+import org.eclipse.aether.resolution.DependencyRequest;
+import org.eclipse.aether.resolution.DependencyResolutionException;
+import org.eclipse.aether.util.artifact.JavaScopes;
+import org.eclipse.aether.util.filter.DependencyFilterUtils;
+import org.mycore.plugins.maven.solr.tools.CopyManifest;
 
 @Mojo(name = "installSolrPlugins")
 public class InstallSolrPluginsMojo extends AbstractSolrMojo {
 
+    private static final String PLUGIN_MANIFEST = ".solr-runner-plugins.properties";
+
+    /**
+     * The artifact id ends at the last dash that is followed by a digit, so ids with a version like segment, e.g.
+     * log4j-1.2-api, are kept whole.
+     */
+    private static final Pattern SHIPPED_JAR_PATTERN = Pattern.compile("(.+)-\\d[\\w.\\-]*\\.jar");
+
     @Parameter(property = "pluginCoreMappings", required = true)
     private List<PluginCoreMapping> pluginCoreMappings;
 
     @Parameter(readonly = true, defaultValue = "${plugin.artifacts}")
     private List<Artifact> pluginDependencies;
 
-    protected void copyPlugins() {
+    @Parameter(readonly = true, defaultValue = "${project.remotePluginRepositories}")
+    private List<RemoteRepository> remotePluginRepositories;
+
+    @Component
+    private RepositorySystem repositorySystem;
+
+    /**
+     * If true, the runtime dependencies of the mapped plugins are installed to the same cores. Dependencies that
+     * are shipped with the web application or the modules of SOLR are left out.
+     */
+    @Parameter(property = "resolveTransitive", required = false, defaultValue = "true")
+    private Boolean resolveTransitive;
+
+    /**
+     * If true, a plugin is copied to the first core only and hard linked into the other cores. Falls back to copies
+     * if the filesystem does not support hard links.
+     */
+    @Parameter(property = "linkPlugins", required = false, defaultValue = "true")
+    private Boolean linkPlugins;
+
+    /**
+     * Where plugins are installed: <code>core</code> copies them to the lib directory of every mapped core,
+     * <code>shared</code> installs them once to the {@link #sharedLib} directory. SOLR loads the shared library
+     * with a single classloader for all cores instead of one classloader per core.
+     */
+    @Parameter(property = "pluginTarget", required = false, defaultValue = "core")
+    private String pluginTarget;
+
+    /**
+     * The shared library directory, relative to the SOLR home. SOLR loads the <code>lib</code> directory of the
+     * SOLR home by default, other directories have to be configured as <code>sharedLib</code> in the solr.xml.
+     */
+    @Parameter(property = "sharedLib", required = false, defaultValue = "lib")
+    private String sharedLib;
+
+    private final AtomicInteger copiedPlugins = new AtomicInteger();
+
+    private final AtomicInteger linkedPlugins = new AtomicInteger();
+
+    private final AtomicInteger skippedPlugins = new AtomicInteger();
+
+    private final AtomicInteger removedPlugins = new AtomicInteger();
+
+    private volatile boolean linksSupported = true;
+
+    protected void copyPlugins() throws MojoFailureException {
+        if (!"core".equals(pluginTarget) && !"shared".equals(pluginTarget)) {
+            throw new MojoFailureException("Unknown plugin target '" + pluginTarget + "', use core or shared");
+        }
         Map<String, List<String>> pluginCoreMappings = new HashMap<>();
         this.pluginCoreMappings.stream().forEach(core -> {
             String plugin = core.getPlugin();
@@ -57,32 +142,335 @@ public class InstallSolrPluginsMojo extends AbstractSolrMojo {
             coreList.add(core.getCore());
         });
 
-        Log log = getLog();
+        Path manifestPath = getSOLRHome().resolve(PLUGIN_MANIFEST);
+        Map<String, String> installed = loadManifest(manifestPath);
+
+        Collection<PluginJar> pluginJars = collectPluginJars(pluginCoreMappings);
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            List<Future<?>> installs = pluginJars.stream()
+                .map(jar -> executor.submit(() -> {
+                    installPlugin(jar, installed, executor);
+                    return null;
+                }))
+                .collect(Collectors.toList());
+            for (Future<?> install : installs) {
+                install.get();
+            }
+            removeUnusedPlugins(pluginJars.stream().map(PluginJar::key).collect(Collectors.toSet()), installed);
+        } catch (ExecutionException e) {
+            throw new MojoFailureException("Error while copying solr plugins.", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MojoFailureException("Interrupted while copying solr plugins.", e);
+        } catch (IOException e) {
+            throw new MojoFailureException("Error while removing unused solr plugins.", e);
+        }
+
+        try {
+            storeManifest(manifestPath, installed);
+        } catch (IOException e) {
+            throw new MojoFailureException("Error while writing " + manifestPath, e);
+        }
+        if (isSharedTarget()) {
+            try {
+                reportSharedLib(pluginCoreMappings);
+            } catch (IOException e) {
+                getLog().warn("Could not list the cores of " + getSOLRHome(), e);
+            }
+        }
+        getLog().info("Copied " + copiedPlugins + " plugin jars, linked " + linkedPlugins + ", skipped "
+            + skippedPlugins + " unchanged, removed " + removedPlugins + " outdated");
+    }
+
+    /**
+     * Installs the plugin into the lib directory of all cores or into the shared library directory. The jar is
+     * written once and hard linked into the other lib directories, which is done concurrently. Copies of the plugin
+     * that were installed to other lib directories before are removed.
+     */
+    private void installPlugin(PluginJar jar, Map<String, String> installed, ExecutorService executor)
+        throws IOException, InterruptedException, ExecutionException {
+        String depKey = jar.key();
+        Path source = jar.file();
+        String fileName = source.getFileName().toString();
+        String manifestValue = fileName + "," + CopyManifest.hash(source);
+        getLog().info("Copy dependency to SOLR: " + depKey);
+
+        List<Path> libDirs = isSharedTarget() ? List.of(getSharedLibPath())
+            : jar.cores().stream().map(core -> getSOLRHome().resolve(core).resolve("lib")).toList();
+        Set<String> installKeys = libDirs.stream().map(libDir -> getInstallKey(libDir, depKey))
+            .collect(Collectors.toSet());
+        removeMovedInstallations(depKey, installKeys, installed);
+
+        List<Path> targets = new ArrayList<>();
+        for (Path libDir : libDirs) {
+            Files.createDirectories(libDir);
+            String installKey = getInstallKey(libDir, depKey);
+            removeOutdatedVersion(libDir, fileName, installed.get(installKey));
+            Path target = libDir.resolve(fileName);
+            if (manifestValue.equals(installed.get(installKey)) && Files.exists(target)
+                && Files.size(target) == Files.size(source)) {
+                skippedPlugins.incrementAndGet();
+                continue;
+            }
+            targets.add(target);
+            installed.put(installKey, manifestValue);
+        }
+        if (targets.isEmpty()) {
+            return;
+        }
+
+        Path first = targets.getFirst();
+        Files.copy(source, first, StandardCopyOption.REPLACE_EXISTING);
+        copiedPlugins.incrementAndGet();
+        List<Future<?>> fanOut = targets.subList(1, targets.size()).stream()
+            .map(target -> executor.submit(() -> {
+                linkOrCopy(source, first, target);
+                return null;
+            }))
+            .collect(Collectors.toList());
+        for (Future<?> future : fanOut) {
+            future.get();
+        }
+    }
 
-        this.pluginDependencies.stream()
-            .filter(dep -> {
-                String depKey = dep.getGroupId() + ":" + dep.getArtifactId();
-                return pluginCoreMappings.containsKey(depKey);
-            }).forEach(dep -> {
+    /**
+     * Collects the jars of the mapped plugins and, if enabled, of their runtime dependencies. Every jar is returned
+     * once, in its newest version, together with all cores that need it. Dependencies that the SOLR distribution
+     * already ships are dropped.
+     */
+    private Collection<PluginJar> collectPluginJars(Map<String, List<String>> pluginCoreMappings)
+        throws MojoFailureException {
+        Map<String, PluginJar> pluginJars = new LinkedHashMap<>();
+        for (Artifact dep : this.pluginDependencies) {
             String depKey = dep.getGroupId() + ":" + dep.getArtifactId();
-            log.info("Copy dependency to SOLR: " + depKey);
             List<String> cores = pluginCoreMappings.get(depKey);
+            if (cores == null) {
+                continue;
+            }
+            List<PluginJar> jars = Boolean.TRUE.equals(resolveTransitive) ? resolveRuntimeDependencies(dep)
+                : List.of(new PluginJar(getJarKey(dep.getGroupId(), dep.getArtifactId(), dep.getClassifier()),
+                    dep.getArtifactId(), dep.getVersion(), dep.getFile().toPath(), new LinkedHashSet<>()));
+            for (PluginJar jar : jars) {
+                PluginJar known = pluginJars.get(jar.key());
+                if (known == null) {
+                    pluginJars.put(jar.key(), jar);
+                    known = jar;
+                } else if (!known.version().equals(jar.version())) {
+                    PluginJar newer = new ComparableVersion(jar.version())
+                        .compareTo(new ComparableVersion(known.version())) > 0 ? jar : known;
+                    getLog().info("Plugins depend on " + jar.key() + " " + known.version() + " and " + jar.version()
+                        + ", using " + newer.version());
+                    newer.cores().addAll(known.cores());
+                    pluginJars.put(jar.key(), newer);
+                    known = newer;
+                }
+                known.cores().addAll(cores);
+            }
+        }
+
+        Map<String, Path> shippedJars = getShippedJars();
+        Set<String> mappedPlugins = pluginCoreMappings.keySet();
+        pluginJars.values().removeIf(jar -> {
+            Path shippedJar = shippedJars.get(jar.artifactId());
+            if (shippedJar == null || mappedPlugins.contains(jar.key())) {
+                return false;
+            }
+            getLog().info("Skip " + jar.key() + " " + jar.version() + ", SOLR ships " + shippedJar);
+            return true;
+        });
+        return pluginJars.values();
+    }
+
+    private List<PluginJar> resolveRuntimeDependencies(Artifact dep) throws MojoFailureException {
+        DefaultArtifact root = new DefaultArtifact(dep.getGroupId(), dep.getArtifactId(), dep.getClassifier(),
+            dep.getArtifactHandler().getExtension(), dep.getVersion());
+        CollectRequest collectRequest = new CollectRequest(new Dependency(root, JavaScopes.RUNTIME),
+            remotePluginRepositories);
+        DependencyRequest request = new DependencyRequest(collectRequest,
+            DependencyFilterUtils.classpathFilter(JavaScopes.RUNTIME));
+        try {
+            return repositorySystem.resolveDependencies(getRepositorySystemSession(), request).getArtifactResults()
+                .stream()
+                .map(ArtifactResult::getArtifact)
+                .map(artifact -> new PluginJar(
+                    getJarKey(artifact.getGroupId(), artifact.getArtifactId(), artifact.getClassifier()),
+                    artifact.getArtifactId(), artifact.getVersion(), artifact.getFile().toPath(),
+                    new LinkedHashSet<>()))
+                .toList();
+        } catch (DependencyResolutionException e) {
+            throw new MojoFailureException("Could not resolve the dependencies of plugin " + root, e);
+        }
+    }
+
+    private static String getJarKey(String groupId, String artifactId, String classifier) {
+        return groupId + ":" + artifactId + (classifier == null || classifier.isEmpty() ? "" : ":" + classifier);
+    }
 
-            cores.forEach(core -> {
-                Path coreLibDir = getSOLRHome().resolve(core).resolve("lib");
-                try {
-                    if (!Files.exists(coreLibDir)) {
-                        Files.createDirectories(coreLibDir);
+    /**
+     * @return the artifact ids of the jars in the web application and the modules of the installed SOLR, mapped to
+     * the jar files
+     */
+    private Map<String, Path> getShippedJars() throws MojoFailureException {
+        Path solrPath = getSOLRPath();
+        Map<String, Path> shippedJars = new HashMap<>();
+        for (Path dir : List.of(solrPath.resolve("server").resolve("solr-webapp"), solrPath.resolve("modules"))) {
+            if (!Files.isDirectory(dir)) {
+                continue;
+            }
+            try (Stream<Path> files = Files.walk(dir)) {
+                files.forEach(file -> {
+                    Matcher matcher = SHIPPED_JAR_PATTERN.matcher(file.getFileName().toString());
+                    if (matcher.matches()) {
+                        shippedJars.putIfAbsent(matcher.group(1), solrPath.relativize(file));
                     }
-                    Files.copy(dep.getFile().toPath(), coreLibDir.resolve(dep.getFile().getName()), StandardCopyOption.REPLACE_EXISTING);
-                } catch (IOException e) {
-                    throw new RuntimeException(new MojoFailureException("Error while copying solr plugins.", e));
-                }
-            });
+                });
+            } catch (IOException e) {
+                throw new MojoFailureException("Error while listing the jars of " + dir, e);
+            }
+        }
+        if (shippedJars.isEmpty()) {
+            getLog().info("SOLR is not installed in " + solrPath + ", plugin dependencies are not compared to it");
+        }
+        return shippedJars;
+    }
+
+    private void removeUnusedPlugins(Set<String> depKeys, Map<String, String> installed) throws IOException {
+        Set<String> unused = installed.keySet().stream()
+            .map(installKey -> installKey.substring(installKey.lastIndexOf('/') + 1))
+            .filter(depKey -> !depKeys.contains(depKey))
+            .collect(Collectors.toSet());
+        for (String depKey : unused) {
+            removeMovedInstallations(depKey, Set.of(), installed);
+        }
+    }
+
+    /**
+     * The manifest key of a plugin is the lib directory, relative to the SOLR home, followed by the artifact key.
+     */
+    private String getInstallKey(Path libDir, String depKey) {
+        return getSOLRHome().relativize(libDir).toString().replace('\\', '/') + "/" + depKey;
+    }
+
+    /**
+     * Removes copies of the plugin from lib directories that are no longer a target, e.g. from the core lib
+     * directories after switching to the shared library, which would otherwise load the plugin twice.
+     */
+    private void removeMovedInstallations(String depKey, Set<String> installKeys, Map<String, String> installed)
+        throws IOException {
+        for (String installKey : Set.copyOf(installed.keySet())) {
+            if (!installKey.endsWith("/" + depKey) || installKeys.contains(installKey)) {
+                continue;
+            }
+            String installedValue = installed.remove(installKey);
+            Path libDir = getSOLRHome().resolve(installKey.substring(0, installKey.lastIndexOf('/')));
+            Path file = libDir.resolve(installedValue.substring(0, installedValue.indexOf(',')));
+            if (Files.deleteIfExists(file)) {
+                getLog().info("Removed plugin from former target " + file);
+                removedPlugins.incrementAndGet();
+            }
+        }
+    }
+
+    private boolean isSharedTarget() {
+        return "shared".equals(pluginTarget);
+    }
+
+    private Path getSharedLibPath() {
+        return getSOLRHome().resolve(sharedLib).normalize();
+    }
 
+    /**
+     * Logs which cores load the shared plugins through the single shared classloader. Every core of the SOLR home
+     * does so, not only the mapped ones.
+     */
+    private void reportSharedLib(Map<String, List<String>> pluginCoreMappings) throws IOException {
+        Path sharedLibPath = getSharedLibPath();
+        List<String> cores;
+        try (Stream<Path> files = Files.find(getSOLRHome(), 3,
+            (path, attrs) -> attrs.isRegularFile() && path.getFileName().toString().equals("core.properties"))) {
+            cores = files.map(path -> getSOLRHome().relativize(path.getParent()).toString()).sorted().toList();
+        }
+        getLog().info("Shared library " + sharedLibPath + " is loaded by one classloader shared by the cores: "
+            + String.join(", ", cores));
+        pluginCoreMappings.forEach((plugin, mappedCores) -> {
+            List<String> unmappedCores = cores.stream().filter(core -> !mappedCores.contains(core)).toList();
+            getLog().info("  " + plugin + ": mapped to " + String.join(", ", mappedCores)
+                + (unmappedCores.isEmpty() ? "" : ", also visible to " + String.join(", ", unmappedCores)));
         });
+
+        if (!sharedLibPath.equals(getSOLRHome().resolve("lib").normalize())) {
+            Path solrXml = getSOLRHome().resolve("solr.xml");
+            if (!Files.exists(solrXml) || !Files.readString(solrXml).contains("sharedLib")) {
+                getLog().warn("SOLR only loads " + sharedLibPath + " if it is configured as sharedLib in "
+                    + solrXml);
+            }
+        }
+    }
+
+    private void linkOrCopy(Path source, Path linkSource, Path target) throws IOException {
+        if (Boolean.TRUE.equals(linkPlugins) && linksSupported) {
+            try {
+                Files.deleteIfExists(target);
+                Files.createLink(target, linkSource);
+                linkedPlugins.incrementAndGet();
+                return;
+            } catch (IOException | UnsupportedOperationException e) {
+                getLog().info("Hard links are not supported for " + target + ", copying instead: " + e);
+                linksSupported = false;
+            }
+        }
+        Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING);
+        copiedPlugins.incrementAndGet();
     }
 
+    /**
+     * Removes the version of the artifact that the manifest recorded for the lib directory, if it differs from the
+     * version to install. Jars that were not installed by this goal, e.g. ones placed there by hand, are kept.
+     */
+    private void removeOutdatedVersion(Path libDir, String fileName, String installedValue) throws IOException {
+        if (installedValue == null) {
+            return;
+        }
+        String installedFileName = installedValue.substring(0, installedValue.indexOf(','));
+        if (!installedFileName.equals(fileName) && Files.deleteIfExists(libDir.resolve(installedFileName))) {
+            getLog().info("Removed outdated plugin " + libDir.resolve(installedFileName));
+            removedPlugins.incrementAndGet();
+        }
+    }
+
+    private static Map<String, String> loadManifest(Path manifestPath) throws MojoFailureException {
+        Map<String, String> installed = new ConcurrentHashMap<>();
+        if (Files.exists(manifestPath)) {
+            Properties properties = new Properties();
+            try (Reader reader = Files.newBufferedReader(manifestPath)) {
+                properties.load(reader);
+            } catch (IOException e) {
+                throw new MojoFailureException("Error while reading " + manifestPath, e);
+            }
+            properties.stringPropertyNames().forEach(name -> installed.put(name, properties.getProperty(name)));
+        }
+        return installed;
+    }
+
+    private static void storeManifest(Path manifestPath, Map<String, String> installed) throws IOException {
+        Properties properties = new Properties();
+        properties.putAll(installed);
+        Files.createDirectories(manifestPath.getParent());
+        Path tempManifestPath = manifestPath.resolveSibling(manifestPath.getFileName() + ".tmp");
+        try (OutputStream os = Files.newOutputStream(tempManifestPath)) {
+            properties.store(os, "plugins installed by the solr-runner-maven-plugin");
+        }
+        Files.move(tempManifestPath, manifestPath, StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * A jar to install.
+     * @param key groupId:artifactId, followed by the classifier if there is one
+     * @param cores the cores that need the jar
+     */
+    private record PluginJar(String key, String artifactId, String version, Path file, Set<String> cores) {
+    }
 
     @Override
     public void execute() throws MojoExecutionException, MojoFailureException {
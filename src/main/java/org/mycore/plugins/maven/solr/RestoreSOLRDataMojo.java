@@ -0,0 +1,72 @@
+/*
+ * This file is part of ***  M y C o R e  ***
+ * See http://www.mycore.de/ for details.
+ *
+ * MyCoRe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MyCoRe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MyCoRe.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mycore.plugins.maven.solr;
+
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+import org.mycore.plugins.maven.solr.tools.IndexSnapshotStore;
+import org.mycore.plugins.maven.solr.tools.SOLRRunner;
+
+/**
+ * Replaces the data directories of the cores in the SOLR home with a snapshot, before SOLR is started. Whether a
+ * snapshot was restored is set as project property, so the tests can skip filling the cores.
+ */
+@Mojo(name = "restore")
+public class RestoreSOLRDataMojo extends AbstractSnapshotMojo {
+
+    /**
+     * The project property that is set to true or false, depending on whether a snapshot was restored.
+     */
+    @Parameter(property = "snapshotRestoredProperty", required = false, defaultValue = "solr.snapshot.restored")
+    private String snapshotRestoredProperty;
+
+    @Override
+    public void execute() throws MojoExecutionException, MojoFailureException {
+        project.getProperties().setProperty(snapshotRestoredProperty, "false");
+        try {
+            useReservedPort();
+            SOLRRunner runner = buildRunner();
+            runner.setPort(this.solrPort);
+            if (runner.getRunningPid().isPresent()) {
+                getLog().warn("SOLR is running on port " + solrPort + ", its data is not replaced by a snapshot");
+                return;
+            }
+            IndexSnapshotStore store = getSnapshotStore();
+            String key = getCurrentSnapshotKey();
+            // the snapshot goal uses this key, even if SOLR changes the SOLR home
+            Files.createDirectories(getSOLRHome());
+            Files.writeString(getSnapshotKeyFile(), key);
+            long start = System.currentTimeMillis();
+            if (!store.restore(getSOLRHome(), key)) {
+                getLog().info("No snapshot " + key + " in " + store.getDirectory() + ", the cores have to be filled");
+                return;
+            }
+            getLog().info("Restored snapshot " + key + " to " + getSOLRHome() + " in "
+                + (System.currentTimeMillis() - start) + " ms");
+            project.getProperties().setProperty(snapshotRestoredProperty, "true");
+        } catch (IOException e) {
+            throw new MojoFailureException("Error while restoring the snapshot to " + getSOLRHome(), e);
+        }
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * This file is part of ***  M y C o R e  ***
+ * See http://www.mycore.de/ for details.
+ *
+ * MyCoRe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MyCoRe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MyCoRe.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mycore.plugins.maven.solr;
+
+import java.io.IOException;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+import org.mycore.plugins.maven.solr.tools.IndexSnapshotStore;
+
+/**
+ * Stores the data directories of the cores in the SOLR home, after the cores were filled, so the restore goal of a
+ * later build can put them back instead of indexing the documents again. Run it after the documents were committed,
+ * while SOLR does not index, or after SOLR was stopped.
+ */
+@Mojo(name = "snapshot")
+public class SnapshotSOLRDataMojo extends AbstractSnapshotMojo {
+
+    /**
+     * If true, an existing snapshot with the same key is replaced.
+     */
+    @Parameter(property = "overwriteSnapshot", required = false, defaultValue = "false")
+    private Boolean overwriteSnapshot;
+
+    @Override
+    public void execute() throws MojoExecutionException, MojoFailureException {
+        try {
+            IndexSnapshotStore store = getSnapshotStore();
+            String key = getSnapshotKey();
+            if (store.exists(key) && !Boolean.TRUE.equals(overwriteSnapshot)) {
+                getLog().info("Snapshot " + key + " exists already in " + store.getDirectory());
+                return;
+            }
+            long start = System.currentTimeMillis();
+            int files = store.snapshot(getSOLRHome(), key);
+            getLog().info("Stored " + files + " files of " + getSOLRHome() + " as snapshot " + key + " in "
+                + (System.currentTimeMillis() - start) + " ms");
+        } catch (IOException | InterruptedException e) {
+            throw new MojoFailureException("Error while storing the snapshot of " + getSOLRHome(), e);
+        }
+    }
+}
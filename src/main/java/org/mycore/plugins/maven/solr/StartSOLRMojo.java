@@ -18,56 +18,366 @@
 
 package org.mycore.plugins.maven.solr;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.OptionalLong;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
 
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
 import org.apache.maven.plugins.annotations.Mojo;
 import org.apache.maven.plugins.annotations.Parameter;
+import org.mycore.plugins.maven.solr.tools.InstanceFingerprint;
+import org.mycore.plugins.maven.solr.tools.PortPool;
 import org.mycore.plugins.maven.solr.tools.SOLRCoreReadyChecker;
 import org.mycore.plugins.maven.solr.tools.SOLRRunner;
+import org.mycore.plugins.maven.solr.tools.SolrLogWatcher;
 
 @Mojo(name = "start")
 public class StartSOLRMojo extends AbstractSolrMojo {
 
+    private static final Duration ZOOKEEPER_START_TIMEOUT = Duration.ofMinutes(3);
+
     @Parameter(property = "coreReadyTries", required = false, defaultValue = "10")
     protected Integer coreReadyTries;
 
+    /**
+     * The maximum wait time between two readiness checks. The checks start with a short wait time that doubles up to
+     * this value.
+     */
     @Parameter(property = "coreReadyRetryWaitTimeInMillis", required = false, defaultValue = "1000")
     protected Integer coreReadyRetryWaitTimeInMillis;
 
+    /**
+     * The overall time to wait for the cores to become ready. Defaults to coreReadyTries times
+     * coreReadyRetryWaitTimeInMillis.
+     */
+    @Parameter(property = "coreReadyTimeoutInMillis", required = false, defaultValue = "0")
+    protected Integer coreReadyTimeoutInMillis;
+
+    /**
+     * The cores that have to answer requests before the start goal finishes. If empty, the goal waits until all
+     * cores are loaded. In cloud mode these are the collections whose replicas have to be active.
+     */
+    @Parameter(property = "requiredCores", required = false)
+    protected List<String> requiredCores;
+
+    /**
+     * How the required cores are checked: <code>ping</code> uses the ping handler of the core,
+     * <code>select</code> an empty query.
+     */
+    @Parameter(property = "coreReadyCheck", required = false, defaultValue = "ping")
+    protected String coreReadyCheck;
+
+    /**
+     * How to detect that SOLR is ready: <code>http</code> polls SOLR, <code>log</code> follows the solr.log and
+     * continues as soon as the server start and the searchers of the cores are logged. The log strategy fails fast,
+     * if the core container or a core logs an error while it is initialized or SOLR runs out of memory, and falls
+     * back to polling if the log does not show the expected lines. A searcher is logged shortly before the core
+     * accepts requests and the log does not show the state of replicas in cloud mode, so one HTTP check still
+     * confirms the readiness. It shares the timeout with the log strategy.
+     */
+    @Parameter(property = "coreReadyStrategy", required = false, defaultValue = "http")
+    protected String coreReadyStrategy;
+
+    /**
+     * The log file that is followed by the log strategy. Defaults to the solr.log of the first node in the
+     * solrRuntimeDirectory.
+     */
+    @Parameter(property = "solrLogFile", required = false)
+    protected File solrLogFile;
+
     @Parameter(property = "verbose", required = false, defaultValue = "false")
     protected boolean verbose;
 
+    private SOLRCoreReadyChecker.CoreCheck getCoreCheck() throws MojoFailureException {
+        return switch (coreReadyCheck) {
+            case "ping" -> SOLRCoreReadyChecker.CoreCheck.PING;
+            case "select" -> SOLRCoreReadyChecker.CoreCheck.SELECT;
+            default -> throw new MojoFailureException("Unknown coreReadyCheck '" + coreReadyCheck
+                + "', use ping or select");
+        };
+    }
+
+    private boolean isLogStrategy() throws MojoFailureException {
+        return switch (coreReadyStrategy) {
+            case "http" -> false;
+            case "log" -> true;
+            default -> throw new MojoFailureException("Unknown coreReadyStrategy '" + coreReadyStrategy
+                + "', use http or log");
+        };
+    }
+
+    private Path getSOLRLogPath(SOLRRunner runner) {
+        return solrLogFile != null ? solrLogFile.toPath() : runner.getLogsDir().resolve("solr.log");
+    }
+
+    /**
+     * @return the cores the log strategy waits for, the required cores or all cores of the SOLR home. In cloud mode
+     * the cores are named by SOLR, so none are returned.
+     */
+    private Set<String> getExpectedCores() throws IOException {
+        if (requiredCores != null && !requiredCores.isEmpty()) {
+            return Set.copyOf(requiredCores);
+        }
+        if (this.cloudMode || !Files.isDirectory(getSOLRHome())) {
+            return Set.of();
+        }
+        Set<String> cores = new HashSet<>();
+        try (Stream<Path> files = Files.find(getSOLRHome(), 3,
+            (path, attrs) -> attrs.isRegularFile() && path.getFileName().toString().equals("core.properties"))) {
+            for (Path coreProperties : files.toList()) {
+                Properties properties = new Properties();
+                try (Reader reader = Files.newBufferedReader(coreProperties)) {
+                    properties.load(reader);
+                }
+                cores.add(properties.getProperty("name", coreProperties.getParent().getFileName().toString()));
+            }
+        }
+        return cores;
+    }
+
     public void execute() throws MojoExecutionException, MojoFailureException {
         setUpSolr();
+        PortPool portPool = getPortPool();
+        if (portPool != null) {
+            try {
+                this.solrPort = portPool.reserve(getPortOwner(), getCloudNodes());
+            } catch (IOException e) {
+                throw new MojoFailureException("Could not reserve a port from " + solrPortPool, e);
+            }
+            getLog().info("Reserved port " + solrPort + " from " + solrPortPool);
+        }
+        exportProperties();
         try {
-            SOLRRunner runner = buildRunner();
-            runner.setPort(this.solrPort);
-            runner.setVerbose(verbose);
+            startSOLR();
+        } catch (MojoExecutionException | MojoFailureException | RuntimeException e) {
+            if (portPool != null) {
+                releasePort(portPool);
+            }
+            throw e;
+        }
+    }
 
-            if (runner.start() != 0) {
-                throw new MojoExecutionException("Solr command did not return 0. See Log for errors.");
+    private void startSOLR() throws MojoExecutionException, MojoFailureException {
+        List<SOLRRunner> runners = buildNodeRunners();
+        runners.forEach(node -> node.setVerbose(verbose));
+        SOLRRunner runner = runners.getFirst();
+        try (SolrLogWatcher logWatcher = isLogStrategy() ? SolrLogWatcher.open(getSOLRLogPath(runner)) : null) {
+            SOLRCoreReadyChecker readyChecker = buildReadyChecker(solrPort);
+
+            long start = System.nanoTime();
+            InstanceFingerprint fingerprint = Boolean.TRUE.equals(reuseRunningSolr)
+                ? InstanceFingerprint.compute(getSOLRHome(), getInstanceSettings()) : null;
+            boolean reused = fingerprint != null && reuseRunningSolr(runners, fingerprint);
+            if (!reused) {
+                startNodes(runners);
+                if (fingerprint != null) {
+                    for (SOLRRunner node : runners) {
+                        recordFingerprint(node, fingerprint);
+                    }
+                }
             }
 
-            SOLRCoreReadyChecker readyChecker = new SOLRCoreReadyChecker(solrPort, "localhost");
-            if(coreReadyTries > 0) {
-                readyChecker.setRetries(coreReadyTries);
+            if (logWatcher != null && !reused) {
+                logWatcher.setLog(getLog());
+                long deadline = System.nanoTime() + readyChecker.getTimeout().toNanos();
+                if (logWatcher.awaitReady(getExpectedCores(), deadline)) {
+                    getLog().info("SOLR reported readiness in its log after "
+                        + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms, confirming via HTTP");
+                }
+                // the HTTP check only gets the time that is left, after the log reported the cores it usually passes
+                // with its first request
+                readyChecker.setTimeout(Duration.ofNanos(Math.max(deadline - System.nanoTime(),
+                    TimeUnit.MILLISECONDS.toNanos(readyChecker.getRetryWaitTimeMS()))));
+            }
+            if (requiredCores != null && !requiredCores.isEmpty()) {
+                readyChecker.setRequiredCores(requiredCores);
+                readyChecker.setCoreCheck(getCoreCheck());
             }
-            if(coreReadyRetryWaitTimeInMillis > 0) {
-                readyChecker.setRetryWaitTimeMS(coreReadyRetryWaitTimeInMillis);
+            if (this.cloudMode) {
+                readyChecker.setExpectedLiveNodes(runners.size());
+                readyChecker.waitForClusterReady();
+            } else if (requiredCores != null && !requiredCores.isEmpty()) {
+                readyChecker.waitForRequiredCoresReady();
+            } else {
+                readyChecker.waitForAllCoresReady();
             }
-            readyChecker.setLog(getLog());
-            readyChecker.waitForAllCoresReady();
 
-            if(this.cloudMode) {
+            if(this.cloudMode && !reused) {
                 runner.uploadSecurityJson();
             }
-
-
         } catch (IOException | InterruptedException e) {
             throw new MojoFailureException("Error while starting SOLR!", e);
         }
     }
 
+    private void releasePort(PortPool portPool) {
+        try {
+            portPool.release(solrPort);
+        } catch (IOException e) {
+            getLog().warn("Could not release the port " + solrPort + ": " + e.getMessage());
+        }
+    }
+
+    private SOLRCoreReadyChecker buildReadyChecker(int port) {
+        SOLRCoreReadyChecker readyChecker = new SOLRCoreReadyChecker(port, "localhost");
+        if(coreReadyTries > 0) {
+            readyChecker.setRetries(coreReadyTries);
+        }
+        if(coreReadyRetryWaitTimeInMillis > 0) {
+            readyChecker.setRetryWaitTimeMS(coreReadyRetryWaitTimeInMillis);
+        }
+        if(coreReadyTimeoutInMillis > 0) {
+            readyChecker.setTimeout(Duration.ofMillis(coreReadyTimeoutInMillis));
+        }
+        readyChecker.setLog(getLog());
+        if (solrUsername != null) {
+            readyChecker.setCredentials(solrUsername, solrPassword);
+        }
+        return readyChecker;
+    }
+
+    /**
+     * Starts all nodes concurrently. Further cloud nodes are started as soon as the ZooKeeper of the first node
+     * accepts connections.
+     */
+    private void startNodes(List<SOLRRunner> runners)
+        throws IOException, InterruptedException, MojoExecutionException {
+        if (runners.size() == 1) {
+            if (runners.getFirst().start() != 0) {
+                throw new MojoExecutionException("Solr command did not return 0. See Log for errors.");
+            }
+            return;
+        }
+        for (int node = 1; node < runners.size(); node++) {
+            prepareNodeSOLRHome(node);
+        }
+        getLog().info("Starting " + runners.size() + " SolrCloud nodes on the ports " + solrPort + " to "
+            + (solrPort + runners.size() - 1));
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            List<Future<Integer>> starts = new ArrayList<>();
+            for (SOLRRunner runner : runners) {
+                starts.add(executor.submit(() -> {
+                    if (runner.getZkHost() != null) {
+                        runner.awaitZooKeeper(ZOOKEEPER_START_TIMEOUT);
+                    }
+                    return runner.start();
+                }));
+            }
+            for (int node = 0; node < runners.size(); node++) {
+                int port = runners.get(node).getPort();
+                try {
+                    if (starts.get(node).get() != 0) {
+                        executor.shutdownNow();
+                        throw new MojoExecutionException("Solr command for the node on port " + port
+                            + " did not return 0. See Log for errors.");
+                    }
+                } catch (ExecutionException e) {
+                    executor.shutdownNow();
+                    throw new IOException("Could not start the node on port " + port, e.getCause());
+                }
+            }
+        } catch (IOException | InterruptedException | MojoExecutionException e) {
+            // the executor has waited for the other starts, the first node runs the ZooKeeper, so it is stopped last
+            stopNodesAfterFailedStart(runners.reversed());
+            throw e;
+        }
+    }
+
+    private void stopNodesAfterFailedStart(List<SOLRRunner> runners) {
+        for (SOLRRunner runner : runners) {
+            try {
+                runner.stop();
+            } catch (IOException | InterruptedException e) {
+                getLog().warn("Could not stop the node on port " + runner.getPort() + " after the failed start: "
+                    + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Creates the SOLR home of a further node with the files in the root of the SOLR home, like solr.xml. The cores
+     * of the nodes are created by SolrCloud.
+     */
+    private void prepareNodeSOLRHome(int node) throws IOException {
+        Path nodeHome = getNodeSOLRHome(node);
+        Files.createDirectories(nodeHome);
+        try (Stream<Path> files = Files.list(getSOLRHome())) {
+            for (Path file : files.filter(Files::isRegularFile).toList()) {
+                Files.copy(file, nodeHome.resolve(file.getFileName()), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+    }
+
+    /**
+     * Checks if the SOLR nodes that run on the ports can be reused. If one of them is missing, was started with
+     * another fingerprint or does not respond, the running ones are stopped, so new ones can be started.
+     * @return true if all nodes run with the fingerprint and respond
+     */
+    private boolean reuseRunningSolr(List<SOLRRunner> runners, InstanceFingerprint fingerprint)
+        throws IOException, InterruptedException, MojoExecutionException {
+        List<SOLRRunner> running = new ArrayList<>();
+        String reason = null;
+        for (SOLRRunner runner : runners) {
+            OptionalLong pid = runner.getRunningPid();
+            if (pid.isEmpty()) {
+                reason = reason != null ? reason : "SOLR on port " + runner.getPort() + " is not running";
+                continue;
+            }
+            running.add(runner);
+            String instance = "SOLR (PID " + pid.getAsLong() + ") on port " + runner.getPort();
+            if (reason != null) {
+                continue;
+            }
+            if (!fingerprint.isRecordedFor(runner.getFingerprintFile(), pid.getAsLong())) {
+                reason = instance + " was started with another configuration";
+            } else if (!buildReadyChecker(runner.getPort()).isResponding()) {
+                reason = instance + " does not respond";
+            }
+        }
+        if (reason == null) {
+            getLog().info("Reusing SOLR on port " + solrPort + (runners.size() > 1 ? " and its nodes" : "")
+                + ", its configuration is unchanged");
+            return true;
+        }
+        if (running.isEmpty()) {
+            return false;
+        }
+        getLog().info(reason + ", restarting SOLR");
+        for (SOLRRunner runner : running.reversed()) {
+            if (runner.stop() != 0) {
+                throw new MojoExecutionException("Could not stop SOLR on port " + runner.getPort()
+                    + ". See Log for errors.");
+            }
+            Files.deleteIfExists(runner.getFingerprintFile());
+        }
+        return false;
+    }
+
+    private void recordFingerprint(SOLRRunner runner, InstanceFingerprint fingerprint) throws IOException {
+        OptionalLong pid = runner.getRunningPid();
+        if (pid.isEmpty()) {
+            getLog().warn("Could not find the PID of SOLR in " + runner.getPidFile()
+                + ", it will not be reused by the next build");
+            return;
+        }
+        fingerprint.record(runner.getFingerprintFile(), pid.getAsLong());
+    }
+
 }
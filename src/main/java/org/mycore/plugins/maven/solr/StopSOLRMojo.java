@@ -18,9 +18,16 @@
 
 package org.mycore.plugins.maven.solr;
 
+import org.mycore.plugins.maven.solr.tools.PortPool;
 import org.mycore.plugins.maven.solr.tools.SOLRRunner;
 
 import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
@@ -31,17 +38,50 @@ public class StopSOLRMojo extends AbstractSolrMojo {
 
     @Override
     public void execute() throws MojoExecutionException, MojoFailureException {
+        if (!useReservedPort()) {
+            getLog().info("No port of " + solrPortPool + " is reserved for " + getPortOwner()
+                + ", SOLR is not running");
+            return;
+        }
+        if (Boolean.TRUE.equals(reuseRunningSolr)) {
+            getLog().info("Leaving SOLR on port " + solrPort + " running for the next build, "
+                + "run the stop goal with -DreuseRunningSolr=false to stop it");
+            return;
+        }
         setUpSolr();
         try {
-            SOLRRunner runner = buildRunner();
-            runner.setPort(this.solrPort);
-
-            if (runner.stop() != 0) {
-                throw new MojoExecutionException("Solr command did not return 0. See Log for errors.");
+            List<SOLRRunner> runners = buildNodeRunners();
+            // the first node runs the ZooKeeper of the others, so it is stopped last
+            stopNodes(runners.subList(1, runners.size()));
+            stopNodes(runners.subList(0, 1));
+            PortPool portPool = getPortPool();
+            if (portPool != null) {
+                portPool.release(solrPort);
             }
         } catch (IOException | InterruptedException e) {
             throw new MojoFailureException("Error while stopping SOLR!", e);
         }
     }
 
+    private void stopNodes(List<SOLRRunner> runners)
+        throws IOException, InterruptedException, MojoExecutionException {
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            List<Future<Integer>> stops = runners.stream()
+                .map(runner -> executor.submit(runner::stop))
+                .toList();
+            for (int i = 0; i < runners.size(); i++) {
+                SOLRRunner runner = runners.get(i);
+                try {
+                    if (stops.get(i).get() != 0) {
+                        throw new MojoExecutionException("Solr command for port " + runner.getPort()
+                            + " did not return 0. See Log for errors.");
+                    }
+                } catch (ExecutionException e) {
+                    throw new IOException("Could not stop SOLR on port " + runner.getPort(), e.getCause());
+                }
+                Files.deleteIfExists(runner.getFingerprintFile());
+            }
+        }
+    }
+
 }
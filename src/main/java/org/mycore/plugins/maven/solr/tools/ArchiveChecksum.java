@@ -0,0 +1,148 @@
+/*
+ * This file is part of ***  M y C o R e  ***
+ * See http://www.mycore.de/ for details.
+ *
+ * MyCoRe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MyCoRe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MyCoRe.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mycore.plugins.maven.solr.tools;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Locale;
+import java.util.Properties;
+
+/**
+ * Helper for the SHA-512 checksums Apache publishes next to each release archive.
+ * <p>
+ * Once an archive is verified, a marker file is written next to it. The marker stores the size and modification
+ * time of the archive, so later builds can trust the archive without hashing it again. If no published checksum was
+ * available, the marker only saves the hashing, the archive is compared against the published checksum later.
+ */
+public final class ArchiveChecksum {
+
+    public static final String ALGORITHM = "SHA-512";
+
+    public static final String PUBLISHED_SUFFIX = ".sha512";
+
+    private static final String MARKER_SUFFIX = ".verified";
+
+    private static final int HEX_LENGTH = 128;
+
+    private ArchiveChecksum() {
+    }
+
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(ALGORITHM + " is not supported by this JVM", e);
+        }
+    }
+
+    public static String toHex(MessageDigest digest) {
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * Parses the content of a published checksum file. Both the <code>sha512sum</code> format and the grouped
+     * format of <code>gpg --print-md</code> used by older releases are supported.
+     * @param content the content of the <code>.sha512</code> file
+     * @param fileName the name of the archive, which may be part of the content
+     * @return the lower case hex checksum or null if the content could not be parsed
+     */
+    public static String parsePublished(String content, String fileName) {
+        String hex = content.replace(fileName, "")
+            .replaceAll("(?i)sha512|[\\s():=*]", "")
+            .toLowerCase(Locale.ROOT);
+        if (hex.length() != HEX_LENGTH || !hex.chars().allMatch(c -> Character.digit(c, 16) != -1)) {
+            return null;
+        }
+        return hex;
+    }
+
+    /**
+     * Hashes an existing archive. This is only needed for archives downloaded before checksums were verified.
+     */
+    public static String hash(Path archive) throws IOException {
+        MessageDigest digest = newDigest();
+        try (InputStream is = new DigestInputStream(Files.newInputStream(archive), digest)) {
+            is.transferTo(OutputStream.nullOutputStream());
+        }
+        return toHex(digest);
+    }
+
+    public static Path getMarkerPath(Path archive) {
+        return archive.resolveSibling(archive.getFileName() + MARKER_SUFFIX);
+    }
+
+    /**
+     * @return true if a marker exists for the archive, the archive was not changed since the marker was written and
+     * its checksum was compared against the published one
+     */
+    public static boolean isVerified(Path archive) throws IOException {
+        Properties marker = loadMarker(archive);
+        return marker != null && Boolean.parseBoolean(marker.getProperty("published"));
+    }
+
+    /**
+     * @return the checksum recorded in the marker, even if it was not compared against the published one, or null if
+     * there is no marker or the archive was changed since it was written
+     */
+    public static String getRecordedChecksum(Path archive) throws IOException {
+        Properties marker = loadMarker(archive);
+        return marker != null ? marker.getProperty("sha512") : null;
+    }
+
+    private static Properties loadMarker(Path archive) throws IOException {
+        Path markerPath = getMarkerPath(archive);
+        if (!Files.exists(markerPath) || !Files.exists(archive)) {
+            return null;
+        }
+        Properties marker = new Properties();
+        try (Reader reader = Files.newBufferedReader(markerPath)) {
+            marker.load(reader);
+        }
+        boolean unchanged = String.valueOf(Files.size(archive)).equals(marker.getProperty("size"))
+            && String.valueOf(Files.getLastModifiedTime(archive).toMillis()).equals(marker.getProperty("lastModified"));
+        return unchanged ? marker : null;
+    }
+
+    /**
+     * Writes the marker for the archive. Has to be called after the modification time of the archive is set.
+     * @param published true if the checksum was compared against the published one
+     */
+    public static void writeMarker(Path archive, String checksum, boolean published) throws IOException {
+        Properties marker = new Properties();
+        marker.setProperty("sha512", checksum);
+        marker.setProperty("published", String.valueOf(published));
+        marker.setProperty("size", String.valueOf(Files.size(archive)));
+        marker.setProperty("lastModified", String.valueOf(Files.getLastModifiedTime(archive).toMillis()));
+        Path markerPath = getMarkerPath(archive);
+        Path tempMarkerPath = markerPath.resolveSibling(markerPath.getFileName() + ".tmp");
+        try (OutputStream os = Files.newOutputStream(tempMarkerPath)) {
+            marker.store(os, "checksum of " + archive.getFileName());
+        }
+        Files.move(tempMarkerPath, markerPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
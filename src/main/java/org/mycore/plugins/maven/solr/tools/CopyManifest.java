@@ -0,0 +1,132 @@
+/*
+ * This file is part of ***  M y C o R e  ***
+ * See http://www.mycore.de/ for details.
+ *
+ * MyCoRe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MyCoRe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MyCoRe.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mycore.plugins.maven.solr.tools;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Records which files were copied from a template directory to a target directory, so unchanged files can be
+ * skipped on the next copy.
+ * <p>
+ * For every file the size and modification time of the template file and of the copy are stored. The SHA-256
+ * hash of the template file is stored optionally, it allows to skip files whose modification time changed, but not
+ * their content, e.g. after a fresh checkout.
+ */
+public class CopyManifest {
+
+    private static final String HASH_ALGORITHM = "SHA-256";
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    public static CopyManifest load(Path manifestPath) throws IOException {
+        CopyManifest manifest = new CopyManifest();
+        if (!Files.exists(manifestPath)) {
+            return manifest;
+        }
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(manifestPath)) {
+            properties.load(reader);
+        }
+        properties.stringPropertyNames().forEach(name -> {
+            Entry entry = Entry.parse(properties.getProperty(name));
+            if (entry != null) {
+                manifest.entries.put(name, entry);
+            }
+        });
+        return manifest;
+    }
+
+    public void store(Path manifestPath) throws IOException {
+        Properties properties = new Properties();
+        entries.forEach((name, entry) -> properties.setProperty(name, entry.format()));
+        Path tempManifestPath = manifestPath.resolveSibling(manifestPath.getFileName() + ".tmp");
+        try (OutputStream os = Files.newOutputStream(tempManifestPath)) {
+            properties.store(os, "files copied by the solr-runner-maven-plugin");
+        }
+        Files.move(tempManifestPath, manifestPath, StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public Entry get(String relativeName) {
+        return entries.get(relativeName);
+    }
+
+    public void put(String relativeName, Entry entry) {
+        entries.put(relativeName, entry);
+    }
+
+    public void remove(String relativeName) {
+        entries.remove(relativeName);
+    }
+
+    public Set<String> getNames() {
+        return Set.copyOf(entries.keySet());
+    }
+
+    public static String hash(Path file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(HASH_ALGORITHM + " is not supported by this JVM", e);
+        }
+        try (InputStream is = new DigestInputStream(Files.newInputStream(file), digest)) {
+            is.transferTo(OutputStream.nullOutputStream());
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * @param hash the hash of the template file, may be null
+     */
+    public record Entry(long templateSize, long templateModified, long targetSize, long targetModified, String hash) {
+
+        private static Entry parse(String value) {
+            String[] parts = value.split(",");
+            if (parts.length < 4) {
+                return null;
+            }
+            try {
+                return new Entry(Long.parseLong(parts[0]), Long.parseLong(parts[1]), Long.parseLong(parts[2]),
+                    Long.parseLong(parts[3]), parts.length > 4 ? parts[4] : null);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        private String format() {
+            return templateSize + "," + templateModified + "," + targetSize + "," + targetModified
+                + (hash != null ? "," + hash : "");
+        }
+    }
+}
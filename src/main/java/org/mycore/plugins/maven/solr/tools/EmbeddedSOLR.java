@@ -0,0 +1,215 @@
+/*
+ * This file is part of ***  M y C o R e  ***
+ * See http://www.mycore.de/ for details.
+ *
+ * MyCoRe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MyCoRe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MyCoRe.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mycore.plugins.maven.solr.tools;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.stream.Stream;
+
+/**
+ * Runs the Jetty of a SOLR installation inside the current JVM.
+ * <p>
+ * Jetty and its libraries are loaded from <code>server/lib</code> by a class loader that only has the platform class
+ * loader as parent, so neither Maven nor the plugin leak into SOLR. Jetty is configured by its XmlConfiguration with
+ * the same XML files that the <code>http</code> module of start.jar uses, and deploys the SOLR web application from
+ * <code>server/contexts</code>.
+ * <p>
+ * Running instances are kept per port, so a later stop goal of the same build finds them. Only one instance can run at
+ * a time, because SOLR is configured by system properties. Starts and stops are synchronized, so builds of parallel
+ * modules do not change the system properties of each other. Jetty registers the server with its shutdown hook, so an
+ * instance that is not stopped is shut down when the JVM exits. Stopping the instance stops the server and removes
+ * it from the hook.
+ */
+public final class EmbeddedSOLR {
+
+    private static final ConcurrentMap<Integer, EmbeddedSOLR> RUNNING = new ConcurrentHashMap<>();
+
+    private static final String XML_CONFIGURATION_CLASS = "org.eclipse.jetty.xml.XmlConfiguration";
+
+    private static final String SHUTDOWN_THREAD_CLASS = "org.eclipse.jetty.util.thread.ShutdownThread";
+
+    private static final String LIFE_CYCLE_CLASS = "org.eclipse.jetty.util.component.LifeCycle";
+
+    private final Path serverDir;
+
+    private final URLClassLoader classLoader;
+
+    private final Map<String, String> previousSystemProperties;
+
+    private EmbeddedSOLR(Path serverDir, URLClassLoader classLoader, Map<String, String> previousSystemProperties) {
+        this.serverDir = serverDir;
+        this.classLoader = classLoader;
+        this.previousSystemProperties = previousSystemProperties;
+    }
+
+    /**
+     * Starts SOLR and returns when Jetty has started and deployed SOLR.
+     * @param serverDir the server directory of the SOLR installation
+     * @param port the port, which identifies the instance
+     * @param properties the properties for the Jetty XML files, they are set as system properties, too, because SOLR
+     * reads its configuration from them
+     */
+    public static synchronized void start(Path serverDir, int port, Map<String, String> properties)
+        throws IOException {
+        if (!RUNNING.isEmpty()) {
+            // SOLR reads its configuration from system properties, so a second instance would change the first one
+            throw new IOException("An embedded SOLR is already running on port " + RUNNING.keySet().iterator().next()
+                + ", only one embedded SOLR can run in a JVM");
+        }
+        URLClassLoader classLoader = new URLClassLoader("solr-" + port, getClassPath(serverDir),
+            ClassLoader.getPlatformClassLoader());
+        Map<String, String> previousSystemProperties = setSystemProperties(properties);
+        EmbeddedSOLR solr = new EmbeddedSOLR(serverDir.toAbsolutePath().normalize(), classLoader,
+            previousSystemProperties);
+
+        List<String> args = new ArrayList<>();
+        properties.forEach((name, value) -> args.add(name + "=" + value));
+        args.add(serverDir.resolve("etc").resolve("jetty.xml").toString());
+        args.add(serverDir.resolve("etc").resolve("jetty-http.xml").toString());
+
+        Thread currentThread = Thread.currentThread();
+        ClassLoader contextClassLoader = currentThread.getContextClassLoader();
+        // threads created by Jetty inherit the context class loader
+        currentThread.setContextClassLoader(classLoader);
+        try {
+            classLoader.loadClass(XML_CONFIGURATION_CLASS)
+                .getMethod("main", String[].class)
+                .invoke(null, (Object) args.toArray(String[]::new));
+            RUNNING.put(port, solr);
+        } catch (InvocationTargetException e) {
+            solr.shutdown();
+            throw new IOException("Could not start the embedded SOLR", e.getCause());
+        } catch (ReflectiveOperationException e) {
+            solr.shutdown();
+            throw new IOException("Could not start Jetty from " + serverDir, e);
+        } finally {
+            currentThread.setContextClassLoader(contextClassLoader);
+        }
+    }
+
+    /**
+     * Stops the embedded SOLR on the port.
+     * @return false if no embedded SOLR runs on the port
+     */
+    public static synchronized boolean stop(int port) throws IOException {
+        EmbeddedSOLR solr = RUNNING.remove(port);
+        if (solr == null) {
+            return false;
+        }
+        solr.shutdown();
+        return true;
+    }
+
+    public static boolean isRunning(int port) {
+        return RUNNING.containsKey(port);
+    }
+
+    /**
+     * @return true if an embedded SOLR runs from the server directory
+     */
+    public static boolean isRunningFrom(Path serverDir) {
+        Path normalizedServerDir = serverDir.toAbsolutePath().normalize();
+        return RUNNING.values().stream().anyMatch(solr -> solr.serverDir.equals(normalizedServerDir));
+    }
+
+    private void shutdown() throws IOException {
+        Thread currentThread = Thread.currentThread();
+        ClassLoader contextClassLoader = currentThread.getContextClassLoader();
+        currentThread.setContextClassLoader(classLoader);
+        try {
+            // the shutdown thread of this class loader only knows the life cycles of this instance, i.e. the server
+            Class<?> shutdownThreadClass = classLoader.loadClass(SHUTDOWN_THREAD_CLASS);
+            Class<?> lifeCycleClass = classLoader.loadClass(LIFE_CYCLE_CLASS);
+            Object shutdownThread = shutdownThreadClass.getMethod("getInstance").invoke(null);
+            Field lifeCyclesField = shutdownThreadClass.getDeclaredField("_lifeCycles");
+            lifeCyclesField.setAccessible(true);
+            Method stop = lifeCycleClass.getMethod("stop");
+            Method deregister = shutdownThreadClass.getMethod("deregister", lifeCycleClass);
+            for (Object lifeCycle : List.copyOf((List<?>) lifeCyclesField.get(shutdownThread))) {
+                try {
+                    stop.invoke(lifeCycle);
+                } finally {
+                    // the last one removes the JVM shutdown hook, which must not run against the closed class loader
+                    deregister.invoke(null, lifeCycle);
+                }
+            }
+        } catch (ClassNotFoundException e) {
+            // Jetty was not loaded, so there is nothing to stop
+        } catch (ReflectiveOperationException e) {
+            throw new IOException("Could not stop the embedded SOLR", e);
+        } finally {
+            currentThread.setContextClassLoader(contextClassLoader);
+            previousSystemProperties.forEach((name, value) -> {
+                if (value == null) {
+                    System.clearProperty(name);
+                } else {
+                    System.setProperty(name, value);
+                }
+            });
+            classLoader.close();
+        }
+    }
+
+    private static URL[] getClassPath(Path serverDir) throws IOException {
+        List<URL> urls = new ArrayList<>();
+        Path resources = serverDir.resolve("resources");
+        if (Files.isDirectory(resources)) {
+            urls.add(resources.toUri().toURL());
+        }
+        for (Path libDir : List.of(serverDir.resolve("lib"), serverDir.resolve("lib").resolve("ext"))) {
+            if (!Files.isDirectory(libDir)) {
+                continue;
+            }
+            try (Stream<Path> jars = Files.list(libDir)) {
+                for (Path jar : jars.filter(jar -> jar.getFileName().toString().endsWith(".jar")).sorted()
+                    .toList()) {
+                    urls.add(jar.toUri().toURL());
+                }
+            }
+        }
+        if (urls.isEmpty()) {
+            throw new IOException("No Jetty libraries found in " + serverDir.resolve("lib"));
+        }
+        return urls.toArray(URL[]::new);
+    }
+
+    /**
+     * @return the previous values of the properties, null for properties that were not set
+     */
+    private static Map<String, String> setSystemProperties(Map<String, String> properties) {
+        Map<String, String> previous = new HashMap<>();
+        properties.forEach((name, value) -> {
+            previous.put(name, System.getProperty(name));
+            System.setProperty(name, value);
+        });
+        return previous;
+    }
+}
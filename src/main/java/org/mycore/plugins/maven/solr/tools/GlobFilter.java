@@ -0,0 +1,70 @@
+/*
+ * This file is part of ***  M y C o R e  ***
+ * See http://www.mycore.de/ for details.
+ *
+ * MyCoRe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MyCoRe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MyCoRe.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mycore.plugins.maven.solr.tools;
+
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+/**
+ * Accepts slash separated relative paths that match no exclude pattern, or that match an include pattern.
+ * <p>
+ * Patterns are globs: <code>**</code> matches any number of path elements, <code>*</code> and <code>?</code>
+ * match within a single path element. A leading <code>**&#47;</code> also matches no path element at all.
+ */
+public class GlobFilter implements Predicate<String> {
+
+    private final List<Pattern> includes;
+
+    private final List<Pattern> excludes;
+
+    public GlobFilter(List<String> includes, List<String> excludes) {
+        this.includes = includes.stream().map(GlobFilter::compile).toList();
+        this.excludes = excludes.stream().map(GlobFilter::compile).toList();
+    }
+
+    @Override
+    public boolean test(String path) {
+        return excludes.stream().noneMatch(pattern -> pattern.matcher(path).matches())
+            || includes.stream().anyMatch(pattern -> pattern.matcher(path).matches());
+    }
+
+    public static Pattern compile(String glob) {
+        StringBuilder regex = new StringBuilder();
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            switch (c) {
+                case '*' -> {
+                    if (glob.startsWith("**/", i)) {
+                        regex.append("(?:.*/)?");
+                        i += 2;
+                    } else if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                        regex.append(".*");
+                        i++;
+                    } else {
+                        regex.append("[^/]*");
+                    }
+                }
+                case '?' -> regex.append("[^/]");
+                default -> regex.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        return Pattern.compile(regex.toString());
+    }
+}
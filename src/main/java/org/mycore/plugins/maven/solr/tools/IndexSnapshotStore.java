@@ -0,0 +1,276 @@
+/*
+ * This file is part of ***  M y C o R e  ***
+ * See http://www.mycore.de/ for details.
+ *
+ * MyCoRe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MyCoRe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MyCoRe.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mycore.plugins.maven.solr.tools;
+
+import org.apache.maven.plugin.logging.Log;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Stores the <code>data</code> directories of the cores in a SOLR home as snapshots and restores them.
+ * <p>
+ * The files of all snapshots are kept once per content in <code>blobs/</code>, named by their SHA-256 hash, so
+ * segments that several snapshots share are stored once. A snapshot is a properties file that maps the files of the
+ * data directories to their hash. Lucene never changes a written index file, so index files are hard linked
+ * between the SOLR home and the store, which makes a restore take only as long as creating the links. Other files,
+ * which SOLR may rewrite, are copied. Without hard link support, index files are copied, too.
+ */
+public class IndexSnapshotStore {
+
+    private static final Pattern DATA_FILE_PATTERN = GlobFilter.compile("**/data/**");
+
+    private static final Pattern INDEX_FILE_PATTERN = GlobFilter.compile("**/data/index*/**");
+
+    // the lock belongs to the running SOLR, the transaction log is not needed after a commit
+    private static final GlobFilter SNAPSHOT_FILTER = new GlobFilter(List.of(), List.of("**/write.lock",
+        "**/data/tlog/**"));
+
+    private static final Pattern DATA_DIRECTORY_PATTERN = Pattern.compile("^((?:.*?/)?data)/");
+
+    private static final String BLOBS_DIRECTORY = "blobs";
+
+    private final Path directory;
+
+    private volatile boolean linksSupported;
+
+    private Log log;
+
+    public IndexSnapshotStore(Path directory) {
+        this.directory = directory;
+        this.linksSupported = true;
+        this.log = null;
+    }
+
+    public boolean exists(String key) {
+        return Files.exists(getSnapshotPath(key));
+    }
+
+    /**
+     * Stores the data directories of the SOLR home as the snapshot with the key. The index should be committed and
+     * SOLR should not write to it, while the snapshot is taken.
+     * @return the number of files in the snapshot
+     */
+    public int snapshot(Path solrHome, String key) throws IOException, InterruptedException {
+        List<String> dataFiles = findDataFiles(solrHome);
+        Files.createDirectories(directory.resolve(BLOBS_DIRECTORY));
+        Map<String, String> hashes = new TreeMap<>();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            Map<String, Future<String>> storedFiles = new TreeMap<>();
+            for (String dataFile : dataFiles) {
+                storedFiles.put(dataFile, executor.submit(() -> storeBlob(solrHome, dataFile)));
+            }
+            for (Map.Entry<String, Future<String>> storedFile : storedFiles.entrySet()) {
+                String hash = storedFile.getValue().get();
+                if (hash != null) {
+                    hashes.put(storedFile.getKey(), hash);
+                }
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException ioException) {
+                throw ioException;
+            }
+            throw new IOException("Error while storing the snapshot " + key, e.getCause());
+        }
+
+        Properties snapshot = new Properties();
+        snapshot.putAll(hashes);
+        Path snapshotPath = getSnapshotPath(key);
+        Path tempSnapshotPath = snapshotPath.resolveSibling(snapshotPath.getFileName() + ".tmp");
+        try (OutputStream os = Files.newOutputStream(tempSnapshotPath)) {
+            snapshot.store(os, "SOLR data snapshot of " + solrHome);
+        }
+        Files.move(tempSnapshotPath, snapshotPath, StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+        return hashes.size();
+    }
+
+    /**
+     * @return the hash of the file or null if it was deleted by SOLR in the meantime
+     */
+    private String storeBlob(Path solrHome, String dataFile) throws IOException {
+        Path file = solrHome.resolve(dataFile);
+        String hash;
+        try {
+            hash = CopyManifest.hash(file);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        Path blob = getBlobPath(hash);
+        if (Files.exists(blob)) {
+            return hash;
+        }
+        Files.createDirectories(blob.getParent());
+        Path tempBlob = blob.resolveSibling(hash + "." + Thread.currentThread().threadId() + ".tmp");
+        Files.deleteIfExists(tempBlob);
+        if (!isIndexFile(dataFile) || !link(tempBlob, file)) {
+            Files.copy(file, tempBlob);
+        }
+        Files.move(tempBlob, blob, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return hash;
+    }
+
+    /**
+     * Replaces the data directories in the SOLR home with the ones of the snapshot.
+     * @return false if there is no snapshot with the key
+     */
+    public boolean restore(Path solrHome, String key) throws IOException {
+        Path snapshotPath = getSnapshotPath(key);
+        if (!Files.exists(snapshotPath)) {
+            return false;
+        }
+        Properties snapshot = new Properties();
+        try (Reader reader = Files.newBufferedReader(snapshotPath)) {
+            snapshot.load(reader);
+        }
+        Set<String> dataFiles = new TreeSet<>(snapshot.stringPropertyNames());
+        for (String dataFile : dataFiles) {
+            Path blob = getBlobPath(snapshot.getProperty(dataFile));
+            if (!Files.exists(blob)) {
+                throw new IOException("The snapshot " + key + " is incomplete, " + blob + " is missing");
+            }
+        }
+
+        Set<String> dataDirectories = new TreeSet<>();
+        for (String dataFile : dataFiles) {
+            Matcher matcher = DATA_DIRECTORY_PATTERN.matcher(dataFile);
+            if (matcher.find()) {
+                dataDirectories.add(matcher.group(1));
+            }
+        }
+        for (String dataDirectory : dataDirectories) {
+            deleteRecursively(solrHome.resolve(dataDirectory));
+        }
+        for (String dataFile : dataFiles) {
+            Path file = solrHome.resolve(dataFile);
+            Path blob = getBlobPath(snapshot.getProperty(dataFile));
+            Files.createDirectories(file.getParent());
+            if (!isIndexFile(dataFile) || !link(file, blob)) {
+                Files.copy(blob, file);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return false if hard links are not supported, the caller has to copy the file then
+     */
+    private boolean link(Path link, Path existing) throws IOException {
+        if (!linksSupported) {
+            return false;
+        }
+        try {
+            Files.createLink(link, existing);
+            return true;
+        } catch (IOException | UnsupportedOperationException e) {
+            if (Files.exists(link)) {
+                throw e;
+            }
+            if (log != null) {
+                log.info("Hard links are not supported for " + link + ", copying instead: " + e);
+            }
+            linksSupported = false;
+            return false;
+        }
+    }
+
+    private static List<String> findDataFiles(Path solrHome) throws IOException {
+        List<String> dataFiles = new ArrayList<>();
+        Files.walkFileTree(solrHome, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                String relativeName = solrHome.relativize(file).toString()
+                    .replace(file.getFileSystem().getSeparator(), "/");
+                if (attrs.isRegularFile() && DATA_FILE_PATTERN.matcher(relativeName).matches()
+                    && SNAPSHOT_FILTER.test(relativeName)) {
+                    dataFiles.add(relativeName);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException {
+                if (exc instanceof NoSuchFileException) {
+                    // deleted by SOLR, e.g. after a merge
+                    return FileVisitResult.CONTINUE;
+                }
+                throw exc;
+            }
+        });
+        return dataFiles;
+    }
+
+    private static boolean isIndexFile(String dataFile) {
+        return INDEX_FILE_PATTERN.matcher(dataFile).matches();
+    }
+
+    private static void deleteRecursively(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(path)) {
+            for (Path p : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(p);
+            }
+        }
+    }
+
+    private Path getSnapshotPath(String key) {
+        return directory.resolve(key + ".properties");
+    }
+
+    private Path getBlobPath(String hash) {
+        return directory.resolve(BLOBS_DIRECTORY).resolve(hash.substring(0, 2)).resolve(hash);
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    public Log getLog() {
+        return log;
+    }
+
+    public void setLog(Log log) {
+        this.log = log;
+    }
+}
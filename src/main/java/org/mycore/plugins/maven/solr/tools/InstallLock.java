@@ -0,0 +1,97 @@
+/*
+ * This file is part of ***  M y C o R e  ***
+ * See http://www.mycore.de/ for details.
+ *
+ * MyCoRe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MyCoRe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MyCoRe.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mycore.plugins.maven.solr.tools;
+
+import org.apache.maven.plugin.logging.Log;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An exclusive lock on a file, shared by all processes and all threads of this JVM.
+ * <p>
+ * A {@link FileLock} is held on behalf of the whole JVM, so parallel reactor builds (<code>mvn -T</code>) are
+ * additionally serialized with an in-memory lock per file.
+ */
+public final class InstallLock implements AutoCloseable {
+
+    private static final ConcurrentMap<Path, ReentrantLock> LOCAL_LOCKS = new ConcurrentHashMap<>();
+
+    private final ReentrantLock localLock;
+
+    private final FileChannel channel;
+
+    private final FileLock fileLock;
+
+    private InstallLock(ReentrantLock localLock, FileChannel channel, FileLock fileLock) {
+        this.localLock = localLock;
+        this.channel = channel;
+        this.fileLock = fileLock;
+    }
+
+    /**
+     * Blocks until the lock is acquired.
+     * @param lockFile the file to lock, it is created if it does not exist and never deleted
+     * @param log used to report that another build holds the lock, may be null
+     */
+    public static InstallLock acquire(Path lockFile, Log log) throws IOException {
+        ReentrantLock localLock = LOCAL_LOCKS.computeIfAbsent(lockFile.toAbsolutePath().normalize(),
+            path -> new ReentrantLock());
+        if (!localLock.tryLock()) {
+            if (log != null) {
+                log.info("Waiting for another module of this build to release " + lockFile + " \u2026");
+            }
+            localLock.lock();
+        }
+        FileChannel channel = null;
+        try {
+            channel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            FileLock fileLock = channel.tryLock();
+            if (fileLock == null) {
+                if (log != null) {
+                    log.info("Waiting for another build to release " + lockFile + " \u2026");
+                }
+                fileLock = channel.lock();
+            }
+            return new InstallLock(localLock, channel, fileLock);
+        } catch (IOException | RuntimeException e) {
+            if (channel != null) {
+                channel.close();
+            }
+            localLock.unlock();
+            throw e;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            fileLock.release();
+            channel.close();
+        } finally {
+            localLock.unlock();
+        }
+    }
+}
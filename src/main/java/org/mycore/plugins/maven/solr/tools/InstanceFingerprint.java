@@ -0,0 +1,158 @@
+/*
+ * This file is part of ***  M y C o R e  ***
+ * See http://www.mycore.de/ for details.
+ *
+ * MyCoRe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MyCoRe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MyCoRe.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mycore.plugins.maven.solr.tools;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * A hash over the settings of a SOLR instance and the content of its SOLR home, including the plugin jars in it.
+ * <p>
+ * The fingerprint is recorded together with the PID of the instance, so a later build can tell whether a running
+ * SOLR was started with the same configuration. Files that SOLR writes while it runs, like the index, are not part
+ * of the fingerprint.
+ */
+public final class InstanceFingerprint {
+
+    private static final String HASH_ALGORITHM = "SHA-256";
+
+    private static final List<String> RUNTIME_FILES = List.of("**/data/**", "zoo_data/**", "filestore/**",
+        "userfiles/**", "**/*.lock", "**/.solr-runner-*");
+
+    private static final String FINGERPRINT_PROPERTY = "fingerprint";
+
+    private static final String PID_PROPERTY = "pid";
+
+    private final String value;
+
+    private InstanceFingerprint(String value) {
+        this.value = value;
+    }
+
+    /**
+     * @param solrHome the SOLR home, its files are hashed by content, so copies with a new modification time
+     * don't change the fingerprint
+     * @param settings the settings SOLR is started with
+     */
+    public static InstanceFingerprint compute(Path solrHome, Map<String, String> settings) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(HASH_ALGORITHM + " is not supported by this JVM", e);
+        }
+        new TreeMap<>(settings).forEach((name, value) -> update(digest, name + "=" + value));
+
+        GlobFilter filter = new GlobFilter(List.of(), RUNTIME_FILES);
+        TreeSet<String> files = new TreeSet<>();
+        if (Files.isDirectory(solrHome)) {
+            Files.walkFileTree(solrHome, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                    String relativeName = toRelativeName(solrHome, dir);
+                    // skips the index directories without listing them
+                    return relativeName.isEmpty() || filter.test(relativeName + "/") ? FileVisitResult.CONTINUE
+                        : FileVisitResult.SKIP_SUBTREE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    String relativeName = toRelativeName(solrHome, file);
+                    if (attrs.isRegularFile() && filter.test(relativeName)) {
+                        files.add(relativeName);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }
+        for (String relativeName : files) {
+            Path file = solrHome.resolve(relativeName);
+            update(digest, relativeName);
+            digest.update(ByteBuffer.allocate(Long.BYTES).putLong(0, Files.size(file)));
+            try (InputStream is = new DigestInputStream(Files.newInputStream(file), digest)) {
+                is.transferTo(OutputStream.nullOutputStream());
+            }
+        }
+        return new InstanceFingerprint(HexFormat.of().formatHex(digest.digest()));
+    }
+
+    private static void update(MessageDigest digest, String value) {
+        digest.update(value.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+    }
+
+    private static String toRelativeName(Path root, Path path) {
+        return root.relativize(path).toString().replace(path.getFileSystem().getSeparator(), "/");
+    }
+
+    /**
+     * @return true if the file records this fingerprint for the process
+     */
+    public boolean isRecordedFor(Path recordFile, long pid) throws IOException {
+        if (!Files.exists(recordFile)) {
+            return false;
+        }
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(recordFile)) {
+            properties.load(reader);
+        }
+        return value.equals(properties.getProperty(FINGERPRINT_PROPERTY))
+            && Long.toString(pid).equals(properties.getProperty(PID_PROPERTY));
+    }
+
+    public void record(Path recordFile, long pid) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty(FINGERPRINT_PROPERTY, value);
+        properties.setProperty(PID_PROPERTY, Long.toString(pid));
+        Path tempRecordFile = recordFile.resolveSibling(recordFile.getFileName() + ".tmp");
+        try (OutputStream os = Files.newOutputStream(tempRecordFile)) {
+            properties.store(os, "SOLR instance started by the solr-runner-maven-plugin");
+        }
+        Files.move(tempRecordFile, recordFile, StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public String getValue() {
+        return value;
+    }
+
+    @Override
+    public String toString() {
+        return value;
+    }
+}
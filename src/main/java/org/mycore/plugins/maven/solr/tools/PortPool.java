@@ -0,0 +1,211 @@
+/*
+ * This file is part of ***  M y C o R e  ***
+ * See http://www.mycore.de/ for details.
+ *
+ * MyCoRe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MyCoRe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MyCoRe.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mycore.plugins.maven.solr.tools;
+
+import org.apache.maven.plugin.logging.Log;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Hands out ports from a range to the SOLR instances of concurrent builds on one machine.
+ * <p>
+ * Reservations are stored in a registry file, which is only read and written while holding an {@link InstallLock}.
+ * A reservation belongs to an owner, the SOLR home, and to the JVM of the build that made it. Reservations of
+ * builds that have ended are free again, but the same owner gets its port back first, so a SOLR that was kept
+ * running can be reused. A reservation also blocks the ports 1000 below and above its ports, which SOLR uses as
+ * stop port and for the embedded ZooKeeper.
+ */
+public class PortPool {
+
+    private static final int RELATED_PORT_OFFSET = 1000;
+
+    private final Path registryFile;
+
+    private final Path lockFile;
+
+    private final int firstPort;
+
+    private final int lastPort;
+
+    private Log log;
+
+    /**
+     * @param registryFile the file that stores the reservations, the lock file is created next to it
+     * @param firstPort the first port of the range
+     * @param lastPort the last port of the range, inclusive
+     */
+    public PortPool(Path registryFile, int firstPort, int lastPort) {
+        this.registryFile = registryFile;
+        this.lockFile = registryFile.resolveSibling(registryFile.getFileName() + ".lock");
+        this.firstPort = firstPort;
+        this.lastPort = lastPort;
+        this.log = null;
+    }
+
+    /**
+     * Reserves consecutive ports, which are free on this machine, for the owner.
+     * @param count the number of ports, e.g. one per SolrCloud node
+     * @return the first of the reserved ports
+     */
+    public int reserve(String owner, int count) throws IOException {
+        long pid = ProcessHandle.current().pid();
+        try (InstallLock lock = InstallLock.acquire(lockFile, log)) {
+            Map<Integer, Reservation> reservations = load();
+            Set<Integer> blockedPorts = new HashSet<>();
+            Integer previousPort = null;
+            Iterator<Map.Entry<Integer, Reservation>> entries = reservations.entrySet().iterator();
+            while (entries.hasNext()) {
+                Map.Entry<Integer, Reservation> entry = entries.next();
+                Reservation reservation = entry.getValue();
+                boolean active = ProcessHandle.of(reservation.pid()).map(ProcessHandle::isAlive).orElse(false);
+                if ((!active || reservation.pid() == pid) && owner.equals(reservation.owner())
+                    && reservation.count() == count && previousPort == null) {
+                    previousPort = entry.getKey();
+                } else if (!active) {
+                    // the build has ended, a SOLR it left running is found by the check for free ports
+                    entries.remove();
+                } else {
+                    blockPorts(blockedPorts, entry.getKey(), reservation.count());
+                }
+            }
+            // SOLR may still run on the port of the owner, so it is not checked for being free
+            int port = previousPort != null ? previousPort : findFreePorts(blockedPorts, count);
+            reservations.put(port, new Reservation(count, pid, owner));
+            store(reservations);
+            return port;
+        }
+    }
+
+    /**
+     * @return the first port reserved for the owner or null
+     */
+    public Integer find(String owner) throws IOException {
+        try (InstallLock lock = InstallLock.acquire(lockFile, log)) {
+            return load().entrySet().stream()
+                .filter(entry -> owner.equals(entry.getValue().owner()))
+                .map(Map.Entry::getKey)
+                .findFirst()
+                .orElse(null);
+        }
+    }
+
+    /**
+     * Releases the reservation that starts with the port.
+     */
+    public void release(int port) throws IOException {
+        try (InstallLock lock = InstallLock.acquire(lockFile, log)) {
+            Map<Integer, Reservation> reservations = load();
+            if (reservations.remove(port) != null) {
+                store(reservations);
+            }
+        }
+    }
+
+    private int findFreePorts(Set<Integer> blockedPorts, int count) throws IOException {
+        for (int port = firstPort; port + count - 1 <= lastPort; port++) {
+            boolean free = true;
+            for (int i = 0; i < count && free; i++) {
+                int candidate = port + i;
+                free = !blockedPorts.contains(candidate) && isFree(candidate)
+                    && isFree(candidate - RELATED_PORT_OFFSET) && isFree(candidate + RELATED_PORT_OFFSET);
+            }
+            if (free) {
+                return port;
+            }
+        }
+        throw new IOException("No " + count + " free port(s) in the range " + firstPort + "-" + lastPort);
+    }
+
+    private static void blockPorts(Set<Integer> blockedPorts, int port, int count) {
+        for (int i = 0; i < count; i++) {
+            blockedPorts.add(port + i);
+            blockedPorts.add(port + i - RELATED_PORT_OFFSET);
+            blockedPorts.add(port + i + RELATED_PORT_OFFSET);
+        }
+    }
+
+    private static boolean isFree(int port) {
+        if (port <= 0 || port > 65535) {
+            return true;
+        }
+        try (ServerSocket socket = new ServerSocket()) {
+            socket.bind(new InetSocketAddress(port));
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private Map<Integer, Reservation> load() throws IOException {
+        Map<Integer, Reservation> reservations = new HashMap<>();
+        if (!Files.exists(registryFile)) {
+            return reservations;
+        }
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(registryFile)) {
+            properties.load(reader);
+        }
+        for (String port : properties.stringPropertyNames()) {
+            String[] parts = properties.getProperty(port).split(",", 3);
+            try {
+                reservations.put(Integer.parseInt(port),
+                    new Reservation(Integer.parseInt(parts[0]), Long.parseLong(parts[1]), parts[2]));
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                // a broken entry reserves nothing
+            }
+        }
+        return reservations;
+    }
+
+    private void store(Map<Integer, Reservation> reservations) throws IOException {
+        Properties properties = new Properties();
+        reservations.forEach((port, reservation) -> properties.setProperty(port.toString(),
+            reservation.count() + "," + reservation.pid() + "," + reservation.owner()));
+        Path tempRegistryFile = registryFile.resolveSibling(registryFile.getFileName() + ".tmp");
+        try (OutputStream os = Files.newOutputStream(tempRegistryFile)) {
+            properties.store(os, "ports reserved by the solr-runner-maven-plugin: count,pid,owner");
+        }
+        Files.move(tempRegistryFile, registryFile, StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public Log getLog() {
+        return log;
+    }
+
+    public void setLog(Log log) {
+        this.log = log;
+    }
+
+    private record Reservation(int count, long pid, String owner) {
+    }
+}
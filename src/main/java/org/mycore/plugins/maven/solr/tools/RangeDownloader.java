@@ -0,0 +1,397 @@
+/*
+ * This file is part of ***  M y C o R e  ***
+ * See http://www.mycore.de/ for details.
+ *
+ * MyCoRe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MyCoRe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MyCoRe.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mycore.plugins.maven.solr.tools;
+
+import org.apache.maven.plugin.logging.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+
+/**
+ * Downloads a file with concurrent HTTP range requests.
+ * <p>
+ * Completed segments are kept in a <code>.part</code> file next to the target. A sidecar
+ * <code>.part.idx</code> file records which segments are complete and the validators of the remote file, so that
+ * an interrupted download can be resumed by a later build.
+ * <p>
+ * If a digest is set, it is updated with the segments in file order as soon as they are complete. Segments that are
+ * present from an interrupted download are hashed once when the download is resumed.
+ */
+public class RangeDownloader {
+
+    private static final long DEFAULT_SEGMENT_SIZE = 8L * 1024 * 1024;
+
+    private static final int SEGMENT_TRIES = 3;
+
+    private final HttpClient client;
+
+    private final URI uri;
+
+    private final Path target;
+
+    private int parallelDownloads;
+
+    private long segmentSize;
+
+    private Log log;
+
+    private HttpResponse<Void> probeResponse;
+
+    private long length;
+
+    private String etag;
+
+    private String lastModified;
+
+    private BitSet completedSegments;
+
+    private MessageDigest digest;
+
+    private int digestedSegments;
+
+    public RangeDownloader(HttpClient client, URI uri, Path target) {
+        this.client = client;
+        this.uri = uri;
+        this.target = target;
+        this.parallelDownloads = 4;
+        this.segmentSize = DEFAULT_SEGMENT_SIZE;
+        this.log = null;
+    }
+
+    /**
+     * Downloads the file to the target path.
+     * @return false if the server does not provide the file or does not support range requests, the caller should
+     * use a single stream in this case
+     */
+    public boolean download() throws IOException, InterruptedException {
+        if (!probe()) {
+            return false;
+        }
+
+        Path partPath = getPartPath();
+        Path indexPath = getIndexPath();
+        int segments = Math.toIntExact((length + segmentSize - 1) / segmentSize);
+        if (!loadIndex(segments)) {
+            completedSegments = new BitSet(segments);
+            Files.deleteIfExists(partPath);
+        } else if (log != null) {
+            log.info("Resuming download of " + uri + " (" + completedSegments.cardinality() + "/" + segments
+                + " segments present)");
+        }
+
+        digestedSegments = 0;
+        List<Integer> missingSegments = new ArrayList<>();
+        for (int segment = completedSegments.nextClearBit(0); segment < segments;
+            segment = completedSegments.nextClearBit(segment + 1)) {
+            missingSegments.add(segment);
+        }
+
+        try (FileChannel channel = FileChannel.open(partPath, StandardOpenOption.CREATE, StandardOpenOption.READ,
+            StandardOpenOption.WRITE);
+            ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, parallelDownloads))) {
+            updateDigest(channel);
+            List<Future<?>> futures = missingSegments.stream()
+                .map(segment -> executor.submit(() -> {
+                    downloadSegment(channel, segment);
+                    return null;
+                }))
+                .collect(Collectors.toList());
+            try {
+                for (Future<?> future : futures) {
+                    future.get();
+                }
+            } catch (ExecutionException e) {
+                executor.shutdownNow();
+                if (e.getCause() instanceof IOException ioException) {
+                    throw ioException;
+                }
+                throw new IOException("Error while downloading " + uri, e.getCause());
+            } catch (InterruptedException e) {
+                executor.shutdownNow();
+                throw e;
+            }
+            channel.force(false);
+        }
+
+        Files.move(partPath, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.deleteIfExists(indexPath);
+        return true;
+    }
+
+    /**
+     * Sends a HEAD request to check if the server provides the file and supports range requests.
+     */
+    private boolean probe() throws IOException, InterruptedException {
+        HttpRequest headRequest = HttpRequest.newBuilder(uri)
+            .method("HEAD", HttpRequest.BodyPublishers.noBody())
+            .build();
+        probeResponse = client.send(headRequest, HttpResponse.BodyHandlers.discarding());
+        if (probeResponse.statusCode() != 200) {
+            if (log != null) {
+                log.debug("HEAD " + uri + " returned " + probeResponse.statusCode());
+            }
+            return false;
+        }
+        boolean acceptsRanges = probeResponse.headers().allValues("Accept-Ranges").stream()
+            .anyMatch(value -> value.toLowerCase(Locale.ROOT).contains("bytes"));
+        length = probeResponse.headers().firstValueAsLong("Content-Length").orElse(-1);
+        if (!acceptsRanges || length <= 0) {
+            if (log != null) {
+                log.info(uri + " does not support range requests, falling back to a single stream.");
+            }
+            return false;
+        }
+        etag = probeResponse.headers().firstValue("ETag").orElse(null);
+        lastModified = probeResponse.headers().firstValue("Last-Modified").orElse(null);
+        return true;
+    }
+
+    private void downloadSegment(FileChannel channel, int segment) throws IOException, InterruptedException {
+        long start = segment * segmentSize;
+        long end = Math.min(start + segmentSize, length) - 1;
+        IOException lastException = null;
+        for (int tries = 0; tries < SEGMENT_TRIES; tries++) {
+            try {
+                writeSegment(channel, start, end);
+                markCompleted(segment);
+                updateDigest(channel);
+                return;
+            } catch (IOException e) {
+                lastException = e;
+                if (log != null) {
+                    log.debug("Download of bytes " + start + "-" + end + " failed: " + e.getMessage());
+                }
+            }
+        }
+        throw lastException;
+    }
+
+    private void writeSegment(FileChannel channel, long start, long end) throws IOException, InterruptedException {
+        HttpRequest.Builder requestBuilder = HttpRequest.newBuilder(uri)
+            .header("Range", "bytes=" + start + "-" + end);
+        // If-Range makes the server send the whole file if it changed, which is rejected below
+        String validator = getStrongValidator();
+        if (validator != null) {
+            requestBuilder.header("If-Range", validator);
+        }
+        HttpResponse<InputStream> response = client.send(requestBuilder.build(),
+            HttpResponse.BodyHandlers.ofInputStream());
+        try (InputStream is = response.body()) {
+            if (response.statusCode() != 206) {
+                throw new IOException("Server did not respond with partial content for " + uri + " (status "
+                    + response.statusCode() + ")");
+            }
+            byte[] buffer = new byte[64 * 1024];
+            long position = start;
+            int read;
+            while ((read = is.read(buffer)) != -1) {
+                if (position + read > end + 1) {
+                    throw new IOException("Server sent more bytes than requested for " + uri);
+                }
+                ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, 0, read);
+                while (byteBuffer.hasRemaining()) {
+                    position += channel.write(byteBuffer, position);
+                }
+            }
+            if (position != end + 1) {
+                throw new IOException("Incomplete segment " + start + "-" + end + " from " + uri);
+            }
+        }
+    }
+
+    private String getStrongValidator() {
+        if (etag != null && !etag.startsWith("W/")) {
+            return etag;
+        }
+        return lastModified;
+    }
+
+    private synchronized void markCompleted(int segment) throws IOException {
+        completedSegments.set(segment);
+        storeIndex();
+    }
+
+    /**
+     * Updates the digest with all complete segments that directly follow the already digested ones.
+     */
+    private synchronized void updateDigest(FileChannel channel) throws IOException {
+        if (digest == null) {
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        while (completedSegments.get(digestedSegments)) {
+            long position = digestedSegments * segmentSize;
+            long end = Math.min(position + segmentSize, length);
+            while (position < end) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), end - position));
+                int read = channel.read(buffer, position);
+                if (read == -1) {
+                    throw new IOException("Unexpected end of " + getPartPath());
+                }
+                buffer.flip();
+                digest.update(buffer);
+                position += read;
+            }
+            digestedSegments++;
+        }
+    }
+
+    private boolean loadIndex(int segments) throws IOException {
+        Path indexPath = getIndexPath();
+        if (!Files.exists(indexPath) || !Files.exists(getPartPath())) {
+            return false;
+        }
+        Properties index = new Properties();
+        try (Reader reader = Files.newBufferedReader(indexPath)) {
+            index.load(reader);
+        }
+        boolean matches = String.valueOf(length).equals(index.getProperty("length"))
+            && String.valueOf(segmentSize).equals(index.getProperty("segmentSize"))
+            && Objects.equals(etag, index.getProperty("etag"))
+            && Objects.equals(lastModified, index.getProperty("lastModified"));
+        if (!matches) {
+            if (log != null) {
+                log.info("Remote file " + uri + " changed, discarding partial download.");
+            }
+            return false;
+        }
+        completedSegments = new BitSet(segments);
+        String completed = index.getProperty("completed", "");
+        Arrays.stream(completed.split(","))
+            .filter(s -> !s.isBlank())
+            .mapToInt(Integer::parseInt)
+            .filter(segment -> segment < segments)
+            .forEach(completedSegments::set);
+        return true;
+    }
+
+    private void storeIndex() throws IOException {
+        Properties index = new Properties();
+        index.setProperty("length", String.valueOf(length));
+        index.setProperty("segmentSize", String.valueOf(segmentSize));
+        if (etag != null) {
+            index.setProperty("etag", etag);
+        }
+        if (lastModified != null) {
+            index.setProperty("lastModified", lastModified);
+        }
+        index.setProperty("completed", completedSegments.stream()
+            .mapToObj(String::valueOf)
+            .collect(Collectors.joining(",")));
+        Path indexPath = getIndexPath();
+        Path tempIndexPath = indexPath.resolveSibling(indexPath.getFileName() + ".tmp");
+        try (OutputStream os = Files.newOutputStream(tempIndexPath)) {
+            index.store(os, "segments of " + uri);
+        }
+        Files.move(tempIndexPath, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Deletes the segments and the index of an interrupted download, e.g. after the file was downloaded with a
+     * single stream instead.
+     */
+    public static void deletePartialDownload(Path target) throws IOException {
+        Files.deleteIfExists(getPartPath(target));
+        Files.deleteIfExists(getIndexPath(target));
+    }
+
+    private Path getPartPath() {
+        return getPartPath(target);
+    }
+
+    private Path getIndexPath() {
+        return getIndexPath(target);
+    }
+
+    private static Path getPartPath(Path target) {
+        return target.resolveSibling(target.getFileName() + ".part");
+    }
+
+    private static Path getIndexPath(Path target) {
+        return target.resolveSibling(target.getFileName() + ".part.idx");
+    }
+
+    /**
+     * @return the response of the HEAD request sent by {@link #download()}, or null if none was sent yet
+     */
+    public HttpResponse<Void> getProbeResponse() {
+        return probeResponse;
+    }
+
+    public MessageDigest getDigest() {
+        return digest;
+    }
+
+    /**
+     * Sets a digest that is updated with the content of the downloaded file.
+     */
+    public void setDigest(MessageDigest digest) {
+        this.digest = digest;
+    }
+
+    public Log getLog() {
+        return log;
+    }
+
+    public void setLog(Log log) {
+        this.log = log;
+    }
+
+    public int getParallelDownloads() {
+        return parallelDownloads;
+    }
+
+    public void setParallelDownloads(int parallelDownloads) {
+        this.parallelDownloads = parallelDownloads;
+    }
+
+    public long getSegmentSize() {
+        return segmentSize;
+    }
+
+    public void setSegmentSize(long segmentSize) {
+        this.segmentSize = segmentSize;
+    }
+}
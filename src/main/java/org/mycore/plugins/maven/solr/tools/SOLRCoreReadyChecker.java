@@ -18,26 +18,67 @@
 
 package org.mycore.plugins.maven.solr.tools;
 
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonStreamParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.MalformedJsonException;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.logging.Log;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.net.URI;
+import java.net.URISyntaxException;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Polls the CoreAdmin API until all cores of a started SOLR are loaded.
+ * <p>
+ * The first polls follow each other quickly, the wait time between them doubles up to {@link #retryWaitTimeMS} and
+ * is randomized a little, so several builds on one machine do not poll in lockstep. The check gives up when the
+ * overall timeout is exceeded.
+ * <p>
+ * If required cores are set, only these cores are checked, each one concurrently with a request to the core itself.
+ * A core that reports an uptime may still be loading or warming its searchers, the request waits for that.
+ * <p>
+ * In SolrCloud the Collections API is polled instead, until all replicas are active, all shards have a leader and
+ * the expected number of nodes is live.
+ */
 public class SOLRCoreReadyChecker {
 
+    private static final int INITIAL_WAIT_TIME_MS = 50;
+
+    private static final Duration MAX_REQUEST_TIMEOUT = Duration.ofSeconds(5);
+
     private final int port;
     private final String host;
     private int retryWaitTimeMS;
     private int retries;
+    private Duration timeout;
+    private List<String> requiredCores;
+    private CoreCheck coreCheck;
+    private int expectedLiveNodes;
+    private String username;
+    private String password;
     private Log log;
 
     public SOLRCoreReadyChecker(int port, String host) {
@@ -45,132 +86,494 @@ public class SOLRCoreReadyChecker {
         this.host = host;
         retryWaitTimeMS = 1000;
         retries = 10;
+        timeout = null;
+        requiredCores = List.of();
+        coreCheck = CoreCheck.PING;
+        expectedLiveNodes = 0;
         log = null;
     }
 
     public void waitForAllCoresReady() throws InterruptedException, MojoExecutionException {
-        if(log != null) {
+        if (log != null) {
             log.info("Waiting for all cores to be ready...");
         }
-        int tries;
-        for (tries = 0; tries < retries; tries++) {
-            try (HttpClient client = HttpClient.newHttpClient()) {
-                HttpRequest onlineRequest = HttpRequest.newBuilder()
-                    .uri(URI.create(buildCoresURL())).build();
-                HttpResponse<String> response = client.send(onlineRequest,
-                    HttpResponse.BodyHandlers.ofString());
-
-                if (response.statusCode() == 401) {
-                    log.info("SOLR requires authentication, skipping readiness check and wait " +
-                        "5 seconds.");
+        waitUntilReady("All cores are", URI.create(buildCoresURL()), this::allCoresReady);
+    }
+
+    /**
+     * Polls the Collections API until every replica of the collections is active and every shard has a leader. If
+     * required cores are set, they are the collections to check.
+     */
+    public void waitForClusterReady() throws InterruptedException, MojoExecutionException {
+        if (log != null) {
+            log.info("Waiting for all replicas to be active"
+                + (expectedLiveNodes > 1 ? " on " + expectedLiveNodes + " nodes" : "") + "...");
+        }
+        waitUntilReady("All replicas are", URI.create(buildClusterStatusURL()), this::clusterReady);
+    }
+
+    private void waitUntilReady(String subject, URI uri, ResponseCheck check)
+        throws InterruptedException, MojoExecutionException {
+        HttpClient client = SharedHttpClient.get();
+        Duration timeout = getTimeout();
+        long start = System.nanoTime();
+        long deadline = start + timeout.toNanos();
+        long firstResponse = -1;
+        long requestNanos = 0;
+        long wait = INITIAL_WAIT_TIME_MS;
+        int tries = 0;
+        while (true) {
+            tries++;
+            long requestStart = System.nanoTime();
+            try {
+                HttpRequest onlineRequest = newRequest(uri, deadline);
+                HttpResponse<InputStream> response = client.send(onlineRequest,
+                    HttpResponse.BodyHandlers.ofInputStream());
+                if (firstResponse < 0) {
+                    firstResponse = System.nanoTime();
+                }
+
+                if (response.statusCode() == 401 && username == null) {
+                    response.body().close();
+                    if (log != null) {
+                        log.info("SOLR requires authentication, skipping readiness check and wait 5 seconds. "
+                            + "Configure solrUsername and solrPassword to check it.");
+                    }
                     Thread.sleep(5000);
                     return;
                 }
+                if (response.statusCode() == 401 || response.statusCode() == 403) {
+                    response.body().close();
+                    throw new MojoExecutionException("SOLR rejected the credentials of " + username + " ("
+                        + response.statusCode() + ") for " + uri);
+                }
                 if (response.statusCode() == 404) {
-                    throw new MojoExecutionException(
-                        "Could not get SOLR core states (" + onlineRequest.uri() + "). 404:\n" + response.body());
+                    try (InputStream is = response.body()) {
+                        throw new MojoExecutionException("Could not get SOLR states (" + onlineRequest.uri()
+                            + "). 404:\n" + new String(is.readAllBytes(), StandardCharsets.UTF_8));
+                    }
                 }
 
-                JsonStreamParser parser = new JsonStreamParser(response.body());
-                JsonElement root = parser.next();
-
-                try {
-                    JsonObject rootObject = root.getAsJsonObject();
-                    if (allCoresReady(rootObject)) {
-                        log.info("All cores are ready.");
+                // closing the body early discards the rest of the response, when a core is not ready
+                try (InputStream is = response.body()) {
+                    if (response.statusCode() == 200 && check.isReady(is)) {
+                        requestNanos += System.nanoTime() - requestStart;
+                        logReady(subject, start, firstResponse, requestNanos, tries);
                         return;
                     } else if (log != null) {
-                        log.info("SOLR not ready yet, waiting...");
+                        log.debug("SOLR not ready yet (" + response.statusCode() + "), waiting...");
+                    }
+                } catch (MalformedJsonException | IllegalStateException | NumberFormatException e) {
+                    if (log != null) {
+                        log.warn("Could not parse JSON document from SOLR (response code:" + response.statusCode()
+                            + "): " + e.getMessage());
                     }
-                } catch (RuntimeException e) {
-                    log.warn("Could not parse JSON document from SOLR (response code:" + response.statusCode() + "):\n"
-                        + response.body());
                 }
             } catch (IOException ex) {
                 if (log != null) {
-                    log.info("SOLR not ready yet, waiting...");
+                    log.debug("SOLR not ready yet, waiting... (" + ex + ")");
                 }
-            } finally {
-                Thread.sleep(retryWaitTimeMS);
+            }
+            requestNanos += System.nanoTime() - requestStart;
+
+            wait = backOff(wait, deadline);
+            if (wait < 0) {
+                break;
             }
         }
-        throw new InterruptedException(
-            "Solr not ready after " + tries + " tries. )" + (retries * retryWaitTimeMS) + " ms)");
+        throw new InterruptedException("Solr not ready after " + tries + " tries (" + timeout.toMillis() + " ms)");
     }
 
-    public boolean allCoresReady(JsonObject root) throws IOException {
-        JsonElement status = root.get("status");
-        if (status == null) {
+    /**
+     * Sends a single request to SOLR, to check if an instance that is already running is healthy.
+     * @return true if SOLR answered, a 401 counts as an answer if no credentials are set
+     */
+    public boolean isResponding() throws InterruptedException {
+        long deadline = System.nanoTime() + MAX_REQUEST_TIMEOUT.toNanos();
+        try {
+            HttpResponse<Void> response = SharedHttpClient.get().send(newRequest(URI.create(buildSystemInfoURL()),
+                deadline), HttpResponse.BodyHandlers.discarding());
+            return response.statusCode() == 200 || (response.statusCode() == 401 && username == null);
+        } catch (IOException e) {
             if (log != null) {
-                log.debug("Status is null");
+                log.debug("SOLR does not respond (" + e + ")");
             }
             return false;
         }
+    }
+
+    private HttpRequest newRequest(URI uri, long deadline) {
+        HttpRequest.Builder builder = HttpRequest.newBuilder(uri).timeout(getRequestTimeout(deadline));
+        if (username != null) {
+            String credentials = username + ":" + (password != null ? password : "");
+            builder.header("Authorization",
+                "Basic " + Base64.getEncoder().encodeToString(credentials.getBytes(StandardCharsets.UTF_8)));
+        }
+        return builder.build();
+    }
 
-        if (!status.isJsonObject()) {
-            if (log != null) {
-                log.debug("Status is not a JsonObject");
+    /**
+     * Checks the required cores concurrently, each with its own poll loop, by a ping or an empty query.
+     * @throws InterruptedException if a core is not ready before the timeout
+     */
+    public void waitForRequiredCoresReady() throws InterruptedException, MojoExecutionException {
+        if (log != null) {
+            log.info("Waiting for the cores " + String.join(", ", requiredCores) + " to be ready...");
+        }
+        long start = System.nanoTime();
+        long deadline = start + getTimeout().toNanos();
+        Map<Future<Long>, String> checks = new HashMap<>();
+        List<String> notReady = new ArrayList<>();
+        String slowestCore = null;
+        long slowest = -1;
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            CompletionService<Long> completion = new ExecutorCompletionService<>(executor);
+            requiredCores.forEach(
+                core -> checks.put(completion.submit(() -> waitForCore(core, start, deadline)), core));
+            try {
+                // the checks are taken as they complete, so a failing core does not wait for the others
+                for (int i = 0; i < checks.size(); i++) {
+                    Future<Long> check = completion.take();
+                    String core = checks.get(check);
+                    try {
+                        long readyAfter = check.get();
+                        if (readyAfter < 0) {
+                            notReady.add(core);
+                        } else if (readyAfter > slowest) {
+                            slowest = readyAfter;
+                            slowestCore = core;
+                        }
+                    } catch (ExecutionException e) {
+                        if (e.getCause() instanceof MojoExecutionException mojoExecutionException) {
+                            throw mojoExecutionException;
+                        }
+                        throw new MojoExecutionException("Error while checking core " + core, e.getCause());
+                    }
+                }
+            } finally {
+                checks.keySet().forEach(check -> check.cancel(true));
+            }
+        }
+        if (!notReady.isEmpty()) {
+            throw new InterruptedException("Cores " + String.join(", ", notReady) + " not ready after "
+                + getTimeout().toMillis() + " ms");
+        }
+        if (log != null && slowestCore != null) {
+            log.info("All required cores are ready after " + TimeUnit.NANOSECONDS.toMillis(slowest)
+                + " ms, the slowest was " + slowestCore);
+        }
+    }
+
+    /**
+     * @return the nanoseconds until the core was ready, or -1 if it was not ready before the deadline
+     */
+    private long waitForCore(String core, long start, long deadline)
+        throws InterruptedException, MojoExecutionException {
+        HttpClient client = SharedHttpClient.get();
+        URI uri = buildCoreCheckURI(core);
+        long wait = INITIAL_WAIT_TIME_MS;
+        int tries = 0;
+        while (true) {
+            tries++;
+            try {
+                HttpRequest request = newRequest(uri, deadline);
+                HttpResponse<Void> response = client.send(request, HttpResponse.BodyHandlers.discarding());
+                if (response.statusCode() == 200) {
+                    long readyAfter = System.nanoTime() - start;
+                    if (log != null) {
+                        log.info("Core " + core + " is ready after " + TimeUnit.NANOSECONDS.toMillis(readyAfter)
+                            + " ms (" + tries + " polls)");
+                    }
+                    return readyAfter;
+                }
+                if (response.statusCode() == 401 || response.statusCode() == 403) {
+                    throw new MojoExecutionException(
+                        (username == null ? "SOLR requires authentication for " : "SOLR rejected the credentials of "
+                            + username + " for ") + uri);
+                }
+                if (log != null) {
+                    log.debug("Core " + core + " not ready yet (" + response.statusCode() + "), waiting...");
+                }
+            } catch (IOException ex) {
+                if (log != null) {
+                    log.debug("Core " + core + " not ready yet, waiting... (" + ex + ")");
+                }
+            }
+            wait = backOff(wait, deadline);
+            if (wait < 0) {
+                return -1;
             }
-            return false;
         }
-        JsonObject statusObject = status.getAsJsonObject();
+    }
 
-        Set<Map.Entry<String, JsonElement>> coreEntries = statusObject.entrySet();
-        if (coreEntries.isEmpty()) {
-            if (log != null) {
+    /**
+     * Sleeps for the given wait time with equal jitter, i.e. at least half of it, but not beyond the deadline.
+     * @return the next wait time, or -1 if the deadline has passed
+     */
+    private long backOff(long wait, long deadline) throws InterruptedException {
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0) {
+            return -1;
+        }
+        long jitteredWait = wait / 2 + ThreadLocalRandom.current().nextLong(wait / 2 + 1);
+        Thread.sleep(Math.min(jitteredWait, TimeUnit.NANOSECONDS.toMillis(remaining) + 1));
+        return Math.min(wait * 2, Math.max(retryWaitTimeMS, INITIAL_WAIT_TIME_MS));
+    }
+
+    private static Duration getRequestTimeout(long deadline) {
+        Duration requestTimeout = Duration.ofNanos(Math.max(deadline - System.nanoTime(), 1));
+        return requestTimeout.compareTo(MAX_REQUEST_TIMEOUT) < 0 ? requestTimeout : MAX_REQUEST_TIMEOUT;
+    }
+
+    private void logReady(String subject, long start, long firstResponse, long requestNanos, int tries) {
+        if (log == null) {
+            return;
+        }
+        long now = System.nanoTime();
+        log.info(subject + " ready after " + TimeUnit.NANOSECONDS.toMillis(now - start) + " ms (SOLR answered"
+            + " after " + TimeUnit.NANOSECONDS.toMillis(firstResponse - start) + " ms, ready "
+            + TimeUnit.NANOSECONDS.toMillis(now - firstResponse) + " ms later, " + tries + " polls, "
+            + TimeUnit.NANOSECONDS.toMillis(requestNanos) + " ms in requests)");
+    }
+
+    /**
+     * Reads the CoreAdmin STATUS response as a stream. Only the uptime of the cores is read, everything else is
+     * skipped, and reading stops at the first core that is not ready.
+     */
+    public boolean allCoresReady(InputStream body) throws IOException {
+        JsonReader reader = new JsonReader(new InputStreamReader(body, StandardCharsets.UTF_8));
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (!"status".equals(reader.nextName())) {
+                reader.skipValue();
+                continue;
+            }
+            if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                if (log != null) {
+                    log.debug("Status is not a JsonObject");
+                }
+                return false;
+            }
+            reader.beginObject();
+            boolean noCores = true;
+            while (reader.hasNext()) {
+                noCores = false;
+                String core = reader.nextName();
+                if (!isCoreReady(reader, core)) {
+                    return false;
+                }
+            }
+            if (noCores && log != null) {
                 log.debug("No cores found");
             }
             return true; // no cores is a valid state and means that solr is ready
         }
+        if (log != null) {
+            log.debug("Status is null");
+        }
+        return false;
+    }
 
-        return coreEntries.stream()
-            .map(this::parseCore)
-            .allMatch(core -> getUptime(core) > 0);
+    private boolean isCoreReady(JsonReader reader, String core) throws IOException {
+        if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+            if (log != null) {
+                log.debug("Core " + core + " is not a JsonObject");
+            }
+            return false;
+        }
+        long uptime = -1;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if ("uptime".equals(reader.nextName()) && reader.peek() == JsonToken.NUMBER) {
+                uptime = reader.nextLong();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        if (uptime <= 0 && log != null && log.isDebugEnabled()) {
+            log.debug("Core " + core + " has no uptime yet");
+        }
+        return uptime > 0;
     }
 
-    private JsonObject parseCore(Map.Entry<String, JsonElement> entry) {
-        JsonElement value = entry.getValue();
-        if (!value.isJsonObject()) {
-            if(log != null) {
-                log.debug("Core " + entry.getKey() + " is not a JsonObject");
+    /**
+     * Reads the CLUSTERSTATUS response as a stream and stops at the first replica that is not active or shard
+     * without leader. The cluster is ready if all {@link #setExpectedLiveNodes(int) expected nodes} are live, too.
+     */
+    public boolean clusterReady(InputStream body) throws IOException {
+        JsonReader reader = new JsonReader(new InputStreamReader(body, StandardCharsets.UTF_8));
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (!"cluster".equals(reader.nextName()) || reader.peek() != JsonToken.BEGIN_OBJECT) {
+                reader.skipValue();
+                continue;
             }
+            // no collections yet, e.g. right after the start of a new cluster
+            boolean collectionsReady = requiredCores.isEmpty();
+            int liveNodes = 0;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if ("collections".equals(name) && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                    if (!collectionsReady(reader)) {
+                        return false;
+                    }
+                    collectionsReady = true;
+                } else if ("live_nodes".equals(name) && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        reader.skipValue();
+                        liveNodes++;
+                    }
+                    reader.endArray();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            if (liveNodes < expectedLiveNodes && log != null) {
+                log.debug(liveNodes + " of " + expectedLiveNodes + " nodes are live");
+            }
+            return collectionsReady && liveNodes >= expectedLiveNodes;
         }
-        return value.getAsJsonObject();
+        if (log != null) {
+            log.debug("Cluster is null");
+        }
+        return false;
     }
 
-    private Integer getUptime(JsonObject core) {
-        if(core == null) {
-            return -1;
+    private boolean collectionsReady(JsonReader reader) throws IOException {
+        Set<String> missingCollections = new HashSet<>(requiredCores);
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String collection = reader.nextName();
+            if (!requiredCores.isEmpty() && !requiredCores.contains(collection)) {
+                reader.skipValue();
+                continue;
+            }
+            missingCollections.remove(collection);
+            if (!isCollectionReady(reader, collection)) {
+                return false;
+            }
         }
+        reader.endObject();
+        if (!missingCollections.isEmpty() && log != null) {
+            log.debug("Collections " + missingCollections + " do not exist yet");
+        }
+        return missingCollections.isEmpty();
+    }
 
-        JsonElement uptime = core.get("uptime");
-        if (uptime == null) {
-            if (log != null && log.isDebugEnabled()) {
-                log.debug("Uptime is null: " + core);
+    private boolean isCollectionReady(JsonReader reader, String collection) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (!"shards".equals(reader.nextName())) {
+                reader.skipValue();
+                continue;
             }
-            return -1;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String shard = reader.nextName();
+                if (!isShardReady(reader, collection + "/" + shard)) {
+                    return false;
+                }
+            }
+            reader.endObject();
         }
-        try {
-            if (uptime.isJsonPrimitive()) {
-                return uptime.getAsInt();
-            } else {
-                if (log != null && log.isDebugEnabled()) {
-                    log.debug("Uptime is not a primitive: " + uptime);
+        reader.endObject();
+        return true;
+    }
+
+    private boolean isShardReady(JsonReader reader, String shard) throws IOException {
+        boolean inactiveShard = false;
+        boolean allActive = true;
+        boolean leader = false;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if ("state".equals(name)) {
+                // shards that were split are inactive and have no leader
+                inactiveShard = !"active".equals(reader.nextString());
+            } else if ("replicas".equals(name)) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String replica = reader.nextName();
+                    Map<String, String> replicaState = readStringFields(reader, "state", "leader");
+                    if (!"active".equals(replicaState.get("state"))) {
+                        if (log != null) {
+                            log.debug("Replica " + replica + " of " + shard + " is " + replicaState.get("state"));
+                        }
+                        allActive = false;
+                    }
+                    leader |= "true".equals(replicaState.get("leader"));
                 }
-                return -1;
+                reader.endObject();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        if (inactiveShard) {
+            return true;
+        }
+        if (!leader && log != null) {
+            log.debug("Shard " + shard + " has no leader yet");
+        }
+        return allActive && leader;
+    }
+
+    /**
+     * Reads the given fields of an object as strings, other fields and values that are no scalars are skipped.
+     */
+    private static Map<String, String> readStringFields(JsonReader reader, String... names) throws IOException {
+        Set<String> wanted = Set.of(names);
+        Map<String, String> fields = new HashMap<>();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (!wanted.contains(name)) {
+                reader.skipValue();
+                continue;
             }
-        } catch (ClassCastException ex) {
-            if (log != null && log.isDebugEnabled()) {
-                log.warn("Uptime is not an integer: " + uptime);
+            // SOLR writes the leader flag as a string, but a boolean is read, too
+            switch (reader.peek()) {
+                case STRING, NUMBER -> fields.put(name, reader.nextString());
+                case BOOLEAN -> fields.put(name, String.valueOf(reader.nextBoolean()));
+                default -> reader.skipValue();
             }
-            return -1;
         }
+        reader.endObject();
+        return fields;
     }
 
     private String buildCoresURL() {
         return "http://" + host + ":" + port + "/solr/admin/cores?indexInfo=false&wt=json";
     }
 
+    private String buildSystemInfoURL() {
+        return "http://" + host + ":" + port + "/solr/admin/info/system?wt=json";
+    }
+
+    private String buildClusterStatusURL() {
+        return "http://" + host + ":" + port + "/solr/admin/collections?action=CLUSTERSTATUS&wt=json";
+    }
+
+    /**
+     * Builds the URI of the core check, the core name is quoted as a path segment.
+     */
+    private URI buildCoreCheckURI(String core) throws MojoExecutionException {
+        String path = "/solr/" + core + switch (coreCheck) {
+            case PING -> "/admin/ping";
+            case SELECT -> "/select";
+        };
+        String query = coreCheck == CoreCheck.SELECT ? "q=*:*&rows=0&wt=json" : "wt=json";
+        try {
+            // the request is sent with the ASCII form, i.e. other characters are percent encoded, too
+            return URI.create(new URI("http", null, host, port, path, query, null).toASCIIString());
+        } catch (URISyntaxException e) {
+            throw new MojoExecutionException("Invalid core name " + core, e);
+        }
+    }
+
     public Log getLog() {
         return log;
     }
@@ -187,6 +590,55 @@ public class SOLRCoreReadyChecker {
         this.retries = retries;
     }
 
+    /**
+     * @return the overall time to wait for the cores, by default the number of retries times the retry wait time
+     */
+    public Duration getTimeout() {
+        return timeout != null ? timeout : Duration.ofMillis((long) retries * retryWaitTimeMS);
+    }
+
+    public void setTimeout(Duration timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * Sets the credentials for Basic authentication, they are sent with every request.
+     */
+    public void setCredentials(String username, String password) {
+        this.username = username;
+        this.password = password;
+    }
+
+    public List<String> getRequiredCores() {
+        return requiredCores;
+    }
+
+    public void setRequiredCores(List<String> requiredCores) {
+        this.requiredCores = requiredCores;
+    }
+
+    public CoreCheck getCoreCheck() {
+        return coreCheck;
+    }
+
+    public void setCoreCheck(CoreCheck coreCheck) {
+        this.coreCheck = coreCheck;
+    }
+
+    public int getExpectedLiveNodes() {
+        return expectedLiveNodes;
+    }
+
+    /**
+     * Sets the number of nodes that have to be live before the cluster is ready.
+     */
+    public void setExpectedLiveNodes(int expectedLiveNodes) {
+        this.expectedLiveNodes = expectedLiveNodes;
+    }
+
+    /**
+     * @return the maximum wait time between two polls
+     */
     public int getRetryWaitTimeMS() {
         return retryWaitTimeMS;
     }
@@ -194,4 +646,19 @@ public class SOLRCoreReadyChecker {
     public void setRetryWaitTimeMS(int retryWaitTimeMS) {
         this.retryWaitTimeMS = retryWaitTimeMS;
     }
+
+    @FunctionalInterface
+    private interface ResponseCheck {
+        boolean isReady(InputStream body) throws IOException;
+    }
+
+    /**
+     * The request that checks a required core.
+     */
+    public enum CoreCheck {
+        /** the ping handler of the core, which runs the configured health check query */
+        PING,
+        /** a query for all documents, that returns no rows */
+        SELECT
+    }
 }
@@ -19,12 +19,26 @@
 package org.mycore.plugins.maven.solr.tools;
 
 import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -49,6 +63,12 @@ public class SOLRRunner {
 
     private boolean cloudMode = false;
 
+    // -z param, the ZooKeeper of another node, if not set a cloud node runs its own ZooKeeper
+    private String zkHost;
+
+    // holds a directory per port with the PID file and the logs, if not set they are written to the installation
+    private Path runtimeDirectory;
+
     // --no-prompt flag
     private boolean noPrompt = true;
 
@@ -64,6 +84,18 @@ public class SOLRRunner {
 
     private static final String NO_PROMPT_FLAG_NEW = "--no-prompt";
 
+    private static final String DEFAULT_MEMORY = "512m";
+
+    private static final String STOP_KEY = "solrrocks";
+
+    private static final Duration DIRECT_START_TIMEOUT = Duration.ofMinutes(3);
+
+    private static final Duration DIRECT_STOP_TIMEOUT = Duration.ofSeconds(30);
+
+    private static final Duration PID_FILE_TIME_TOLERANCE = Duration.ofSeconds(1);
+
+    private LaunchMode launchMode = LaunchMode.SCRIPT;
+
     public SOLRRunner(Path executable) {
         this.executable = executable;
     }
@@ -120,6 +152,18 @@ public class SOLRRunner {
         this.cloudMode = cloudMode;
     }
 
+    public String getZkHost() {
+        return zkHost;
+    }
+
+    /**
+     * Sets the ZooKeeper a cloud node connects to, e.g. localhost:9983 for the embedded ZooKeeper of the node on port
+     * 8983.
+     */
+    public void setZkHost(String zkHost) {
+        this.zkHost = zkHost;
+    }
+
     public String getSolrVersion() {
         return solrVersion;
     }
@@ -163,6 +207,11 @@ public class SOLRRunner {
             parameters.add("-c");
         }
 
+        if (isCloudMode() && zkHost != null) {
+            parameters.add("-z");
+            parameters.add(zkHost);
+        }
+
         if (noPrompt) {
             parameters.add(getNoPromptFlag(solrVersion));
         }
@@ -223,8 +272,13 @@ public class SOLRRunner {
     }
 
     public int start() throws IOException, InterruptedException {
-        Process solrProccess = new ProcessBuilder(buildParameterList("start")).redirectErrorStream(true).inheritIO()
-            .start();
+        if (launchMode == LaunchMode.DIRECT) {
+            return startDirect();
+        }
+        if (launchMode == LaunchMode.EMBEDDED) {
+            return startEmbedded();
+        }
+        Process solrProccess = buildScriptProcess(buildParameterList("start")).start();
         return waitAndOutput(solrProccess);
     }
 
@@ -233,11 +287,314 @@ public class SOLRRunner {
     }
 
     public int stop() throws IOException, InterruptedException {
-        Process solrProccess = new ProcessBuilder(buildParameterList("stop")).redirectErrorStream(true).inheritIO()
-            .start();
+        if (launchMode == LaunchMode.DIRECT) {
+            return stopDirect();
+        }
+        if (launchMode == LaunchMode.EMBEDDED) {
+            EmbeddedSOLR.stop(getPort());
+            return 0;
+        }
+        Process solrProccess = buildScriptProcess(buildParameterList("stop")).start();
         return waitAndOutput(solrProccess);
     }
 
+    /**
+     * Points bin/solr to the PID and log directories of this instance, so instances of the same installation don't
+     * share them.
+     */
+    private ProcessBuilder buildScriptProcess(List<String> command) throws IOException {
+        ProcessBuilder processBuilder = new ProcessBuilder(command).redirectErrorStream(true).inheritIO();
+        if (runtimeDirectory != null) {
+            Files.createDirectories(getPidFile().getParent());
+            Files.createDirectories(getLogsDir());
+            processBuilder.environment().put("SOLR_PID_DIR", getPidFile().getParent().toString());
+            processBuilder.environment().put("SOLR_LOGS_DIR", getLogsDir().toString());
+        }
+        return processBuilder;
+    }
+
+    /**
+     * Starts the Jetty of the SOLR installation with the java executable of this JVM, like bin/solr would. The PID
+     * is written to the same file as bin/solr does, so either way of stopping works. Output goes to the console log
+     * in the logs directory.
+     * @return 0 if SOLR listens on its port, otherwise the exit code of the SOLR process
+     */
+    public int startDirect() throws IOException, InterruptedException {
+        Path serverDir = getSolrInstallDir().resolve("server");
+        if (!Files.exists(serverDir.resolve("start.jar"))) {
+            throw new IOException("No start.jar found in " + serverDir);
+        }
+        Path logsDir = getLogsDir();
+        Files.createDirectories(logsDir);
+        Files.createDirectories(getPidFile().getParent());
+        Path consoleLog = logsDir.resolve("solr-" + getPort() + "-console.log");
+
+        Process solrProcess = new ProcessBuilder(buildDirectCommand(serverDir, logsDir))
+            .directory(serverDir.toFile())
+            .redirectErrorStream(true)
+            .redirectOutput(ProcessBuilder.Redirect.appendTo(consoleLog.toFile()))
+            .start();
+        Files.writeString(getPidFile(), Long.toString(solrProcess.pid()));
+
+        long deadline = System.nanoTime() + DIRECT_START_TIMEOUT.toNanos();
+        while (System.nanoTime() < deadline) {
+            if (!solrProcess.isAlive()) {
+                Files.deleteIfExists(getPidFile());
+                return solrProcess.exitValue();
+            }
+            if (isListening(getPort())) {
+                return 0;
+            }
+            Thread.sleep(25);
+        }
+        throw new IOException("SOLR did not open port " + getPort() + " in " + DIRECT_START_TIMEOUT.toSeconds()
+            + " s, see " + consoleLog);
+    }
+
+    protected List<String> buildDirectCommand(Path serverDir, Path logsDir) {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.add("-server");
+        String memory = getMemory() != null ? getMemory() : DEFAULT_MEMORY;
+        command.add("-Xms" + memory);
+        command.add("-Xmx" + memory);
+        if (additionalVMParams != null && !additionalVMParams.isBlank()) {
+            command.addAll(Arrays.asList(additionalVMParams.trim().split("\\s+")));
+        }
+        getJettyProperties(serverDir, logsDir)
+            .forEach((name, value) -> command.add("-D" + name + (value.isEmpty() ? "" : "=" + value)));
+        command.add("-Duser.timezone=UTC");
+        command.add("-jar");
+        command.add("start.jar");
+        command.add("--module=http");
+        return command;
+    }
+
+    /**
+     * @return the system properties that bin/solr passes to the Jetty of SOLR
+     */
+    protected Map<String, String> getJettyProperties(Path serverDir, Path logsDir) {
+        Map<String, String> properties = new LinkedHashMap<>();
+        properties.put("jetty.port", Integer.toString(getPort()));
+        properties.put("STOP.PORT", Integer.toString(getPort() - 1000));
+        properties.put("STOP.KEY", STOP_KEY);
+        properties.put("jetty.home", serverDir.toString());
+        properties.put("jetty.base", serverDir.toString());
+        properties.put("solr.solr.home", getSolrHome());
+        properties.put("solr.install.dir", getSolrInstallDir().toString());
+        properties.put("solr.default.confdir", serverDir.resolve("solr/configsets/_default/conf").toString());
+        properties.put("solr.log.dir", logsDir.toString());
+        Path log4jConfig = serverDir.resolve("resources/log4j2.xml");
+        if (Files.exists(log4jConfig)) {
+            properties.put("log4j.configurationFile", log4jConfig.toUri().toString());
+        }
+        if (isCloudMode() && zkHost != null) {
+            properties.put("zkHost", zkHost);
+        } else if (isCloudMode()) {
+            properties.put("zkRun", "");
+        }
+        return properties;
+    }
+
+    /**
+     * Starts SOLR inside this JVM, see {@link EmbeddedSOLR}. System properties of the additional VM parameters are
+     * passed to SOLR, other VM parameters, like the heap size, do not apply.
+     * @return 0 if SOLR was started
+     */
+    public int startEmbedded() throws IOException {
+        Path serverDir = getSolrInstallDir().resolve("server");
+        Path logsDir = getLogsDir();
+        Files.createDirectories(logsDir);
+        Map<String, String> properties = getJettyProperties(serverDir, logsDir);
+        // the shutdown monitor of Jetty would exit the JVM of the build on a stop command
+        properties.remove("STOP.PORT");
+        properties.remove("STOP.KEY");
+        if (additionalVMParams != null && !additionalVMParams.isBlank()) {
+            Arrays.stream(additionalVMParams.trim().split("\\s+"))
+                .filter(param -> param.startsWith("-D"))
+                .map(param -> param.substring(2).split("=", 2))
+                .forEach(property -> properties.put(property[0], property.length > 1 ? property[1] : ""));
+        }
+        EmbeddedSOLR.start(serverDir, getPort(), properties);
+        return 0;
+    }
+
+    /**
+     * Stops a SOLR started by {@link #startDirect()}. The process is asked to shut down and killed, if it does not
+     * exit in time.
+     * @return 0 if SOLR was stopped or not running
+     */
+    public int stopDirect() throws IOException, InterruptedException {
+        Path pidFile = getPidFile();
+        if (!Files.exists(pidFile)) {
+            return 0;
+        }
+        Optional<ProcessHandle> solrProcess = findSolrProcess();
+        if (solrProcess.isPresent()) {
+            ProcessHandle handle = solrProcess.get();
+            handle.destroy();
+            try {
+                handle.onExit().get(DIRECT_STOP_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                handle.destroyForcibly();
+                handle.onExit().join();
+            } catch (ExecutionException e) {
+                throw new IOException("Error while waiting for SOLR to stop", e.getCause());
+            }
+        }
+        Files.deleteIfExists(pidFile);
+        return 0;
+    }
+
+    /**
+     * @return the PID of the SOLR that was started on the port by bin/solr or by this runner and is still running
+     */
+    public OptionalLong getRunningPid() throws IOException {
+        if (launchMode == LaunchMode.EMBEDDED) {
+            return EmbeddedSOLR.isRunning(getPort()) ? OptionalLong.of(ProcessHandle.current().pid())
+                : OptionalLong.empty();
+        }
+        return findSolrProcess().map(handle -> OptionalLong.of(handle.pid())).orElseGet(OptionalLong::empty);
+    }
+
+    private Optional<ProcessHandle> findSolrProcess() throws IOException {
+        Path pidFile = getPidFile();
+        if (!Files.exists(pidFile)) {
+            return Optional.empty();
+        }
+        long pid;
+        try {
+            pid = Long.parseLong(Files.readString(pidFile).trim());
+        } catch (NumberFormatException e) {
+            return Optional.empty();
+        }
+        Instant pidFileWritten = Files.getLastModifiedTime(pidFile).toInstant();
+        return ProcessHandle.of(pid)
+            .filter(ProcessHandle::isAlive)
+            // the PID may have been reused after SOLR died
+            .filter(handle -> isSolrProcess(handle, pidFileWritten));
+    }
+
+    /**
+     * Checks the command line of the process. If it can not be read, e.g. for processes of other users on some
+     * platforms, SOLR must have been started before its PID file was written. A process that can not be checked at
+     * all is not taken for SOLR.
+     */
+    private static boolean isSolrProcess(ProcessHandle handle, Instant pidFileWritten) {
+        ProcessHandle.Info info = handle.info();
+        if (info.commandLine().isPresent()) {
+            return info.commandLine().get().contains("start.jar");
+        }
+        // the start time and the modification time may be rounded differently
+        return info.startInstant().map(started -> !started.isAfter(pidFileWritten.plus(PID_FILE_TIME_TOLERANCE)))
+            .orElse(false);
+    }
+
+    /**
+     * Waits until the ZooKeeper of {@link #getZkHost()} accepts connections, so a node is not started before the
+     * node that runs the ZooKeeper.
+     */
+    public void awaitZooKeeper(Duration timeout) throws IOException, InterruptedException {
+        int zkPort = Integer.parseInt(zkHost.substring(zkHost.lastIndexOf(':') + 1).split("/", 2)[0]);
+        long deadline = System.nanoTime() + timeout.toNanos();
+        while (!isListening(zkPort)) {
+            if (System.nanoTime() >= deadline) {
+                throw new IOException("ZooKeeper " + zkHost + " did not start in " + timeout.toMillis() + " ms");
+            }
+            Thread.sleep(25);
+        }
+    }
+
+    private static boolean isListening(int port) {
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 100);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Finds a SOLR that runs from the installation. bin/solr and the direct mode pass the installation as system
+     * property solr.install.dir, the embedded mode is only found in this JVM.
+     * @return the SOLR process, the current process for an embedded SOLR
+     */
+    public static Optional<ProcessHandle> findProcessRunningFrom(Path installDir) {
+        if (EmbeddedSOLR.isRunningFrom(installDir.resolve("server"))) {
+            return Optional.of(ProcessHandle.current());
+        }
+        Set<String> installDirArguments = new HashSet<>();
+        installDirArguments.add("-Dsolr.install.dir=" + installDir.toAbsolutePath().normalize());
+        try {
+            // bin/solr may resolve symbolic links in the path
+            installDirArguments.add("-Dsolr.install.dir=" + installDir.toRealPath());
+        } catch (IOException e) {
+            // the installation does not exist, so nothing runs from it
+            return Optional.empty();
+        }
+        return ProcessHandle.allProcesses()
+            .filter(handle -> handle.info().arguments()
+                .map(arguments -> Arrays.stream(arguments).anyMatch(installDirArguments::contains))
+                .orElse(false))
+            .findFirst();
+    }
+
+    private Path getSolrInstallDir() {
+        return executable.toAbsolutePath().getParent().getParent();
+    }
+
+    /**
+     * @return the directory of this instance in the runtime directory or null, if no runtime directory is set
+     */
+    public Path getInstanceDirectory() {
+        return runtimeDirectory != null ? runtimeDirectory.resolve(Integer.toString(getPort())) : null;
+    }
+
+    /**
+     * @return the directory SOLR writes its logs to
+     */
+    public Path getLogsDir() {
+        Path instanceDirectory = getInstanceDirectory();
+        return instanceDirectory != null ? instanceDirectory.resolve("logs")
+            : getSolrInstallDir().resolve("server").resolve("logs");
+    }
+
+    /**
+     * @return the PID file that bin/solr uses for the port
+     */
+    public Path getPidFile() {
+        Path instanceDirectory = getInstanceDirectory();
+        return (instanceDirectory != null ? instanceDirectory : getSolrInstallDir().resolve("bin"))
+            .resolve("solr-" + getPort() + ".pid");
+    }
+
+    /**
+     * @return the file that records the {@link InstanceFingerprint} of the SOLR on the port
+     */
+    public Path getFingerprintFile() {
+        return getPidFile().resolveSibling("solr-" + getPort() + ".fingerprint");
+    }
+
+    public Path getRuntimeDirectory() {
+        return runtimeDirectory;
+    }
+
+    /**
+     * Sets the directory that holds the PID file and the logs of the instances, in a directory per port. Without it,
+     * they are written to the installation, like bin/solr does by default.
+     */
+    public void setRuntimeDirectory(Path runtimeDirectory) {
+        this.runtimeDirectory = runtimeDirectory;
+    }
+
+    public LaunchMode getLaunchMode() {
+        return launchMode;
+    }
+
+    public void setLaunchMode(LaunchMode launchMode) {
+        this.launchMode = launchMode;
+    }
+
     public String getAdditionalVMParams() {
         return additionalVMParams;
     }
@@ -278,4 +635,16 @@ public class SOLRRunner {
             return NO_PROMPT_FLAG_NEW;
         }
     }
+
+    /**
+     * How SOLR is started and stopped.
+     */
+    public enum LaunchMode {
+        /** by the bin/solr script */
+        SCRIPT,
+        /** as a java process started from the Jetty start.jar, bypassing the script */
+        DIRECT,
+        /** inside the JVM of the build */
+        EMBEDDED
+    }
 }
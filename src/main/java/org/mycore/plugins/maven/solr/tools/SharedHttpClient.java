@@ -0,0 +1,42 @@
+/*
+ * This file is part of ***  M y C o R e  ***
+ * See http://www.mycore.de/ for details.
+ *
+ * MyCoRe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MyCoRe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MyCoRe.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mycore.plugins.maven.solr.tools;
+
+import java.net.http.HttpClient;
+
+/**
+ * Holds the HttpClient that is used for all requests of a build, so connections are reused between mojo executions.
+ * The client prefers HTTP/2 and falls back to HTTP/1.1 for servers that don't support it. It must not be closed.
+ */
+public final class SharedHttpClient {
+
+    private SharedHttpClient() {
+    }
+
+    public static HttpClient get() {
+        return Holder.CLIENT;
+    }
+
+    private static final class Holder {
+        private static final HttpClient CLIENT = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_2)
+            .followRedirects(HttpClient.Redirect.NORMAL)
+            .build();
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ * This file is part of ***  M y C o R e  ***
+ * See http://www.mycore.de/ for details.
+ *
+ * MyCoRe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MyCoRe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MyCoRe.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mycore.plugins.maven.solr.tools;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Follows the solr.log while SOLR starts and reports when the server and its cores are up.
+ * <p>
+ * The directory of the log is watched with a {@link WatchService} and every change is read from the last offset,
+ * so events are noticed within milliseconds on platforms with native file notifications. On other platforms the
+ * file is read every {@link #POLL_INTERVAL_MS} ms. Rotated logs, i.e. a new file or a shorter file, are read from
+ * the start.
+ * <p>
+ * Only errors of the core container, errors while a core is initialized and an {@link OutOfMemoryError} end the
+ * wait early, other errors are left to the readiness check.
+ */
+public class SolrLogWatcher implements AutoCloseable {
+
+    private static final long POLL_INTERVAL_MS = 100;
+
+    private static final int MAX_ERROR_LINES = 20;
+
+    private static final Pattern SERVER_STARTED_PATTERN = Pattern.compile("Server Started");
+
+    // the core is part of the MDC in brackets, e.g. [ x:core1 t:] or [c:coll s:shard1 r:core_node2 x:coll_replica]
+    private static final Pattern CORE_LOADED_PATTERN = Pattern
+        .compile("\\[[^\\]]*\\bx:([^\\s\\]]+)[^\\]]*\\].*Registered new searcher");
+
+    // errors of the core container, or of a core while it is initialized, mean that a core will not come up; other
+    // errors, e.g. of a request or a plugin, do not stop the start
+    private static final Pattern CORE_INIT_ERROR_PATTERN = Pattern.compile(
+        "\\sERROR\\s.*\\b(?:o\\.a\\.s\\.c|org\\.apache\\.solr\\.core)\\.(?:CoreContainer\\b|SolrCore\\b.*(?i:init))"
+            + "|java\\.lang\\.OutOfMemoryError");
+
+    private static final Pattern LOG_LINE_START_PATTERN = Pattern.compile("^\\d{4}-\\d{2}-\\d{2}");
+
+    private final Path logFile;
+
+    private final WatchService watchService;
+
+    private Object fileKey;
+
+    private long offset;
+
+    private final StringBuilder partialLine = new StringBuilder();
+
+    private boolean started;
+
+    private final Set<String> loadedCores = new HashSet<>();
+
+    private List<String> errorLines;
+
+    private Duration startGracePeriod;
+
+    private Log log;
+
+    private SolrLogWatcher(Path logFile, WatchService watchService) {
+        this.logFile = logFile;
+        this.watchService = watchService;
+        this.startGracePeriod = Duration.ofSeconds(2);
+        this.log = null;
+    }
+
+    /**
+     * Starts to watch the log file. Only lines written after this call are considered.
+     */
+    public static SolrLogWatcher open(Path logFile) throws IOException {
+        Path directory = logFile.toAbsolutePath().getParent();
+        Files.createDirectories(directory);
+        WatchService watchService = directory.getFileSystem().newWatchService();
+        try {
+            directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException | RuntimeException e) {
+            watchService.close();
+            throw e;
+        }
+        SolrLogWatcher watcher = new SolrLogWatcher(logFile, watchService);
+        if (Files.exists(logFile)) {
+            BasicFileAttributes attributes = Files.readAttributes(logFile, BasicFileAttributes.class);
+            watcher.fileKey = attributes.fileKey();
+            watcher.offset = attributes.size();
+        }
+        return watcher;
+    }
+
+    /**
+     * Waits until the log reports that the server started and that all given cores registered a searcher.
+     * @param cores the cores to wait for, may be empty
+     * @param deadline the {@link System#nanoTime()} to give up at
+     * @return true if SOLR is ready, false if the log did not report it in time and another check should be used,
+     * which is also the case if the server start is not logged within the start grace period
+     * @throws MojoExecutionException if the log reports that the core container or a core failed to initialize, or
+     * that SOLR ran out of memory
+     */
+    public boolean awaitReady(Set<String> cores, long deadline)
+        throws IOException, InterruptedException, MojoExecutionException {
+        long startDeadline = Math.min(deadline, System.nanoTime() + startGracePeriod.toNanos());
+        while (true) {
+            readNewLines();
+            if (errorLines != null) {
+                throw new MojoExecutionException("SOLR failed to initialize its cores (" + logFile + "):\n"
+                    + String.join("\n", errorLines));
+            }
+            if (started && loadedCores.containsAll(cores)) {
+                return true;
+            }
+            long now = System.nanoTime();
+            if (now >= deadline || (!started && now >= startDeadline)) {
+                if (log != null) {
+                    log.info(started ? "Cores " + missingCores(cores) + " did not report a searcher in " + logFile
+                        : "Server start was not found in " + logFile + ", falling back to HTTP checks");
+                }
+                return false;
+            }
+            awaitChange(Math.min(deadline, started ? deadline : startDeadline) - now);
+        }
+    }
+
+    private List<String> missingCores(Set<String> cores) {
+        return cores.stream().filter(core -> !loadedCores.contains(core)).sorted().toList();
+    }
+
+    private void awaitChange(long remainingNanos) throws InterruptedException {
+        try {
+            WatchKey key = watchService.poll(Math.min(TimeUnit.NANOSECONDS.toMillis(remainingNanos) + 1,
+                POLL_INTERVAL_MS), TimeUnit.MILLISECONDS);
+            if (key != null) {
+                key.pollEvents();
+                key.reset();
+            }
+        } catch (ClosedWatchServiceException e) {
+            Thread.sleep(POLL_INTERVAL_MS);
+        }
+    }
+
+    private void readNewLines() throws IOException {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(logFile, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            return;
+        }
+        if (!Objects.equals(fileKey, attributes.fileKey()) || attributes.size() < offset) {
+            // the log was rotated
+            fileKey = attributes.fileKey();
+            offset = 0;
+            partialLine.setLength(0);
+        }
+        if (attributes.size() == offset) {
+            return;
+        }
+        try (SeekableByteChannel channel = Files.newByteChannel(logFile)) {
+            channel.position(offset);
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+            int read;
+            while ((read = channel.read(buffer)) > 0) {
+                offset += read;
+                buffer.flip();
+                // log lines are ASCII apart from messages, a split multi byte character only garbles a message
+                partialLine.append(StandardCharsets.UTF_8.decode(buffer));
+                buffer.clear();
+            }
+        }
+        int lineEnd;
+        while ((lineEnd = partialLine.indexOf("\n")) >= 0) {
+            String line = partialLine.substring(0, lineEnd);
+            partialLine.delete(0, lineEnd + 1);
+            onLine(line);
+        }
+    }
+
+    private void onLine(String line) {
+        if (errorLines != null) {
+            // collect the stack trace of the error
+            if (errorLines.size() < MAX_ERROR_LINES && !LOG_LINE_START_PATTERN.matcher(line).find()) {
+                errorLines.add(line);
+            }
+            return;
+        }
+        if (CORE_INIT_ERROR_PATTERN.matcher(line).find()) {
+            errorLines = new ArrayList<>();
+            errorLines.add(line);
+            return;
+        }
+        if (!started && SERVER_STARTED_PATTERN.matcher(line).find()) {
+            started = true;
+            if (log != null) {
+                log.info("SOLR server started: " + line);
+            }
+            return;
+        }
+        Matcher coreMatcher = CORE_LOADED_PATTERN.matcher(line);
+        if (coreMatcher.find() && loadedCores.add(coreMatcher.group(1)) && log != null) {
+            log.info("Core " + coreMatcher.group(1) + " registered its searcher");
+        }
+    }
+
+    public Path getLogFile() {
+        return logFile;
+    }
+
+    public Duration getStartGracePeriod() {
+        return startGracePeriod;
+    }
+
+    /**
+     * Sets how long to wait for the server start in the log, before falling back to other checks.
+     */
+    public void setStartGracePeriod(Duration startGracePeriod) {
+        this.startGracePeriod = startGracePeriod;
+    }
+
+    public Log getLog() {
+        return log;
+    }
+
+    public void setLog(Log log) {
+        this.log = log;
+    }
+
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+    }
+}
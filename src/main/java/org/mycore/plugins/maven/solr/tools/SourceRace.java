@@ -0,0 +1,170 @@
+/*
+ * This file is part of ***  M y C o R e  ***
+ * See http://www.mycore.de/ for details.
+ *
+ * MyCoRe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MyCoRe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MyCoRe.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mycore.plugins.maven.solr.tools;
+
+import org.apache.maven.plugin.logging.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Probes several download sources of the same file concurrently and ranks them by their early throughput.
+ * <p>
+ * Every source is asked for the first bytes of the file. As soon as the first source delivered them, the others get
+ * a short grace period to finish their probe, after that they are cancelled.
+ */
+public class SourceRace {
+
+    private static final int DEFAULT_PROBE_BYTES = 256 * 1024;
+
+    private final HttpClient client;
+
+    private final List<URI> sources;
+
+    private int probeBytes;
+
+    private Duration timeout;
+
+    private Log log;
+
+    public SourceRace(HttpClient client, List<URI> sources) {
+        this.client = client;
+        this.sources = sources;
+        this.probeBytes = DEFAULT_PROBE_BYTES;
+        this.timeout = Duration.ofSeconds(10);
+        this.log = null;
+    }
+
+    /**
+     * @return all sources, the ones that answered the probe ordered by throughput first, followed by the ones that
+     * failed or were too slow in their original order
+     */
+    public List<URI> rank() throws InterruptedException {
+        List<Probe> finished = new ArrayList<>();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            CompletionService<Probe> completionService = new ExecutorCompletionService<>(executor);
+            List<Future<Probe>> futures = sources.stream()
+                .map(source -> completionService.submit(() -> probe(source)))
+                .toList();
+
+            long start = System.nanoTime();
+            long deadline = start + timeout.toNanos();
+            for (int i = 0; i < futures.size(); i++) {
+                long remaining = deadline - System.nanoTime();
+                Future<Probe> future = remaining > 0 ? completionService.poll(remaining, TimeUnit.NANOSECONDS) : null;
+                if (future == null) {
+                    break;
+                }
+                try {
+                    Probe probe = future.get();
+                    if (probe != null) {
+                        if (finished.isEmpty()) {
+                            // give slower starters as much time as the first one needed
+                            long elapsed = System.nanoTime() - start;
+                            deadline = Math.min(deadline, System.nanoTime() + elapsed);
+                        }
+                        finished.add(probe);
+                    }
+                } catch (ExecutionException e) {
+                    if (log != null) {
+                        log.debug("Probe failed: " + e.getCause().getMessage());
+                    }
+                }
+            }
+            futures.forEach(future -> future.cancel(true));
+            executor.shutdownNow();
+        }
+
+        List<URI> ranked = new ArrayList<>(finished.stream()
+            .sorted(Comparator.comparingDouble(Probe::bytesPerSecond).reversed())
+            .map(Probe::source)
+            .toList());
+        if (log != null) {
+            finished.forEach(probe -> log.info("Source " + probe.source() + ": "
+                + Math.round(probe.bytesPerSecond() / 1024) + " KiB/s"));
+        }
+        sources.stream().filter(source -> !ranked.contains(source)).forEach(ranked::add);
+        return ranked;
+    }
+
+    /**
+     * @return the measured probe or null if the source does not provide the file
+     */
+    private Probe probe(URI source) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        HttpRequest request = HttpRequest.newBuilder(source)
+            .header("Range", "bytes=0-" + (probeBytes - 1))
+            .build();
+        HttpResponse<InputStream> response = client.send(request, HttpResponse.BodyHandlers.ofInputStream());
+        try (InputStream is = response.body()) {
+            if (response.statusCode() != 200 && response.statusCode() != 206) {
+                if (log != null) {
+                    log.debug(source + " returned " + response.statusCode());
+                }
+                return null;
+            }
+            // servers that ignore the range header send the whole file, so stop reading after the probe
+            int read = is.readNBytes(probeBytes).length;
+            double seconds = Math.max(System.nanoTime() - start, 1) / 1_000_000_000d;
+            return new Probe(source, read / seconds);
+        }
+    }
+
+    public int getProbeBytes() {
+        return probeBytes;
+    }
+
+    public void setProbeBytes(int probeBytes) {
+        this.probeBytes = probeBytes;
+    }
+
+    public Duration getTimeout() {
+        return timeout;
+    }
+
+    public void setTimeout(Duration timeout) {
+        this.timeout = timeout;
+    }
+
+    public Log getLog() {
+        return log;
+    }
+
+    public void setLog(Log log) {
+        this.log = log;
+    }
+
+    private record Probe(URI source, double bytesPerSecond) {
+    }
+}
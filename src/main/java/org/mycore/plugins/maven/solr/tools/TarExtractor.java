@@ -0,0 +1,323 @@
+/*
+ * This file is part of ***  M y C o R e  ***
+ * See http://www.mycore.de/ for details.
+ *
+ * MyCoRe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MyCoRe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MyCoRe.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mycore.plugins.maven.solr.tools;
+
+import org.apache.commons.compress.archivers.ArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+import org.apache.maven.plugin.logging.Log;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+/**
+ * Extracts a gzipped tar archive to a directory.
+ * <p>
+ * In parallel mode the calling thread only inflates and parses the archive. File contents are buffered and written,
+ * together with their POSIX attributes, by virtual threads. The amount of buffered content is limited, entries that
+ * are larger than the limit are written by the calling thread. The calling thread stops reading the archive as soon
+ * as one of the writes has failed.
+ * <p>
+ * Entries rejected by the filter are skipped in the tar stream and never written.
+ */
+public class TarExtractor {
+
+    private static final int DEFAULT_MAX_BUFFERED_BYTES = 64 * 1024 * 1024;
+
+    private final Path targetDirectory;
+
+    private final String stripPrefix;
+
+    private boolean parallel;
+
+    private int maxBufferedBytes;
+
+    private Log log;
+
+    private Predicate<String> filter;
+
+    private long skippedEntries;
+
+    private long skippedBytes;
+
+    private final AtomicLong extractedFiles = new AtomicLong();
+
+    private final AtomicLong extractedBytes = new AtomicLong();
+
+    /**
+     * @param targetDirectory the directory to extract to
+     * @param stripPrefix a leading path element that is removed from every entry name, may be null
+     */
+    public TarExtractor(Path targetDirectory, String stripPrefix) {
+        this.targetDirectory = targetDirectory.normalize();
+        this.stripPrefix = stripPrefix;
+        this.parallel = true;
+        this.maxBufferedBytes = DEFAULT_MAX_BUFFERED_BYTES;
+        this.log = null;
+        this.filter = name -> true;
+    }
+
+    /**
+     * Extracts the archive from the given stream. The stream is read up to its end, but not closed.
+     */
+    public void extract(InputStream is) throws IOException {
+        long start = System.nanoTime();
+        // the caller owns the source stream, so it must stay open when the tar stream is closed
+        InputStream source = new FilterInputStream(is) {
+            @Override
+            public void close() {
+            }
+        };
+        List<DirectoryEntry> directories = new ArrayList<>();
+        try (TarArchiveInputStream tar = new TarArchiveInputStream(new GzipCompressorInputStream(source));
+            ExecutorService executor = parallel ? Executors.newVirtualThreadPerTaskExecutor() : null) {
+            Files.createDirectories(targetDirectory);
+            Semaphore bufferedBytes = new Semaphore(maxBufferedBytes);
+            List<Future<?>> writes = new ArrayList<>();
+            AtomicReference<Exception> writeError = new AtomicReference<>();
+            ArchiveEntry entry;
+            while ((entry = tar.getNextEntry()) != null) {
+                failOnWriteError(writeError);
+                if (!(entry instanceof TarArchiveEntry tarEntry)) {
+                    throw new IllegalStateException(
+                        "Not a tar entry: " + entry.getName() + " " + entry.getClass().getName());
+                }
+                String name = getRelativeName(entry.getName());
+                Path target = targetDirectory.resolve(name).normalize();
+                if (!target.startsWith(targetDirectory)) {
+                    throw new IOException("Entry " + entry.getName() + " is outside of " + targetDirectory);
+                }
+                if (!name.isEmpty() && !filter.test(name)) {
+                    skippedEntries++;
+                    skippedBytes += entry.isDirectory() ? 0 : tarEntry.getSize();
+                    continue;
+                }
+
+                if (entry.isDirectory()) {
+                    Files.createDirectories(target);
+                    // attributes are applied last, writing files would change the modification time again
+                    directories.add(new DirectoryEntry(target, tarEntry));
+                    continue;
+                }
+
+                if (log != null && log.isDebugEnabled()) {
+                    log.debug("Extract file: " + name);
+                }
+                Files.createDirectories(target.getParent());
+                long size = tarEntry.getSize();
+                if (executor == null || size > maxBufferedBytes) {
+                    Files.copy(tar, target, StandardCopyOption.REPLACE_EXISTING);
+                    applyAttributes(target, tarEntry);
+                    count(size);
+                    continue;
+                }
+
+                int permits = (int) size;
+                acquire(bufferedBytes, permits);
+                byte[] content = tar.readNBytes(permits);
+                writes.add(executor.submit(() -> {
+                    try {
+                        Files.write(target, content);
+                        applyAttributes(target, tarEntry);
+                        count(size);
+                    } catch (IOException | RuntimeException e) {
+                        writeError.compareAndSet(null, e);
+                        throw e;
+                    } finally {
+                        bufferedBytes.release(permits);
+                    }
+                    return null;
+                }));
+            }
+            awaitAll(writes);
+
+            for (int i = directories.size() - 1; i >= 0; i--) {
+                DirectoryEntry directory = directories.get(i);
+                applyAttributes(directory.path(), directory.entry());
+            }
+            // the tar end marker may be followed by padding, a teeing stream has to see those bytes, too
+            is.transferTo(OutputStream.nullOutputStream());
+        }
+        if (log != null) {
+            log.info("Extracted " + extractedFiles.get() + " files (" + (extractedBytes.get() / 1024 / 1024)
+                + " MiB) in " + (System.nanoTime() - start) / 1_000_000 + " ms" + (parallel ? " (parallel)" : ""));
+            if (skippedEntries > 0) {
+                log.info("Skipped " + skippedEntries + " filtered entries (" + (skippedBytes / 1024 / 1024)
+                    + " MiB)");
+            }
+        }
+    }
+
+    private String getRelativeName(String name) {
+        if (stripPrefix != null && name.startsWith(stripPrefix)) {
+            name = name.substring(stripPrefix.length());
+        }
+        if (name.startsWith("/")) {
+            name = name.substring(1);
+        }
+        return name;
+    }
+
+    private void count(long size) {
+        extractedFiles.incrementAndGet();
+        extractedBytes.addAndGet(size);
+    }
+
+    private static void acquire(Semaphore semaphore, int permits) throws InterruptedIOException {
+        try {
+            semaphore.acquire(permits);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while extracting");
+        }
+    }
+
+    /**
+     * Stops reading the archive as soon as a write failed, the first error of the writers is rethrown.
+     */
+    private static void failOnWriteError(AtomicReference<Exception> writeError) throws IOException {
+        Exception e = writeError.get();
+        if (e instanceof IOException ioException) {
+            throw ioException;
+        }
+        if (e != null) {
+            throw new IOException("Error while extracting", e);
+        }
+    }
+
+    private static void awaitAll(List<Future<?>> writes) throws IOException {
+        for (Future<?> write : writes) {
+            try {
+                write.get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException ioException) {
+                    throw ioException;
+                }
+                throw new IOException("Error while extracting", e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while extracting");
+            }
+        }
+    }
+
+    private static void applyAttributes(Path target, TarArchiveEntry tarEntry) throws IOException {
+        PosixFileAttributeView posixAttributes = Files.getFileAttributeView(target, PosixFileAttributeView.class);
+        if (posixAttributes != null) {
+            posixAttributes.setPermissions(mapToPosixFilePermissions(tarEntry));
+        }
+        Files.setLastModifiedTime(target, tarEntry.getLastModifiedTime());
+    }
+
+    private static EnumSet<PosixFilePermission> mapToPosixFilePermissions(TarArchiveEntry entry) {
+        int mode = entry.getMode();
+        return EnumSet.allOf(PosixFilePermission.class).stream()
+            .filter(permission -> (mode & getPermissionBit(permission)) != 0)
+            .collect(Collectors.toCollection(() -> EnumSet.noneOf(PosixFilePermission.class)));
+    }
+
+    private static int getPermissionBit(PosixFilePermission permission) {
+        return switch (permission) {
+            case OWNER_READ -> 0400;
+            case OWNER_WRITE -> 0200;
+            case OWNER_EXECUTE -> 0100;
+            case GROUP_READ -> 0040;
+            case GROUP_WRITE -> 0020;
+            case GROUP_EXECUTE -> 0010;
+            case OTHERS_READ -> 0004;
+            case OTHERS_WRITE -> 0002;
+            case OTHERS_EXECUTE -> 0001;
+        };
+    }
+
+    public long getSkippedEntries() {
+        return skippedEntries;
+    }
+
+    public long getSkippedBytes() {
+        return skippedBytes;
+    }
+
+    public Predicate<String> getFilter() {
+        return filter;
+    }
+
+    /**
+     * Sets a filter for the entry names, relative to the target directory. Directory names end with a slash.
+     */
+    public void setFilter(Predicate<String> filter) {
+        this.filter = filter;
+    }
+
+    public long getExtractedFiles() {
+        return extractedFiles.get();
+    }
+
+    public long getExtractedBytes() {
+        return extractedBytes.get();
+    }
+
+    public boolean isParallel() {
+        return parallel;
+    }
+
+    public void setParallel(boolean parallel) {
+        this.parallel = parallel;
+    }
+
+    public int getMaxBufferedBytes() {
+        return maxBufferedBytes;
+    }
+
+    public void setMaxBufferedBytes(int maxBufferedBytes) {
+        this.maxBufferedBytes = maxBufferedBytes;
+    }
+
+    public Log getLog() {
+        return log;
+    }
+
+    public void setLog(Log log) {
+        this.log = log;
+    }
+
+    private record DirectoryEntry(Path path, TarArchiveEntry entry) {
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * This file is part of ***  M y C o R e  ***
+ * See http://www.mycore.de/ for details.
+ *
+ * MyCoRe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MyCoRe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MyCoRe.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mycore.plugins.maven.solr.tools;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Map;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestReporter;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+/**
+ * Checks how CoreAdmin STATUS and CLUSTERSTATUS responses are read. The benchmark compares the streaming check with
+ * parsing a synthetic response of a SOLR with many cores into a tree, as the checker did before. It runs only with
+ * <code>-Dbenchmark=true</code>, publishes the timings to the test report and only fails if the two approaches
+ * disagree.
+ */
+public class SOLRCoreReadyCheckerTest {
+
+    private static final int CORES = 500;
+
+    private static final int ROUNDS = 200;
+
+    private static final String HEADER = "{\"responseHeader\":{\"status\":0,\"QTime\":3},";
+
+    @Test
+    @EnabledIfSystemProperty(named = "benchmark", matches = "true")
+    public void benchmarkTreeAgainstStream(TestReporter reporter) throws IOException {
+        SOLRCoreReadyChecker checker = new SOLRCoreReadyChecker(8983, "localhost");
+        byte[] ready = statusResponse(CORES, -1);
+        byte[] firstLoading = statusResponse(CORES, 0);
+
+        long tree = Long.MAX_VALUE;
+        long stream = Long.MAX_VALUE;
+        // the first round warms up the JIT for both approaches
+        for (int round = 0; round <= ROUNDS; round++) {
+            long treeStart = System.nanoTime();
+            assertTrue(allCoresReadyTree(ready));
+            assertFalse(allCoresReadyTree(firstLoading));
+            long treeTime = System.nanoTime() - treeStart;
+
+            long streamStart = System.nanoTime();
+            assertTrue(checker.allCoresReady(new ByteArrayInputStream(ready)));
+            assertFalse(checker.allCoresReady(new ByteArrayInputStream(firstLoading)));
+            long streamTime = System.nanoTime() - streamStart;
+            if (round > 0) {
+                tree = Math.min(tree, treeTime);
+                stream = Math.min(stream, streamTime);
+            }
+        }
+        reporter.publishEntry("treeMicros", Long.toString(tree / 1000));
+        reporter.publishEntry("streamMicros", Long.toString(stream / 1000));
+    }
+
+    @Test
+    public void emptyStatusIsReady() throws IOException {
+        SOLRCoreReadyChecker checker = new SOLRCoreReadyChecker(8983, "localhost");
+        assertTrue(allCoresReady(checker, HEADER + "\"initFailures\":{},\"status\":{}}"));
+        assertTrue(checker.allCoresReady(new ByteArrayInputStream(statusResponse(0, -1))));
+        assertFalse(allCoresReady(checker, HEADER + "\"initFailures\":{}}"));
+    }
+
+    @Test
+    public void coreWithInitFailureIsNotReady() throws IOException {
+        SOLRCoreReadyChecker checker = new SOLRCoreReadyChecker(8983, "localhost");
+        // SOLR lists a core that failed to initialize like a core that is not loaded
+        assertFalse(allCoresReady(checker, HEADER + "\"initFailures\":{\"broken\":\"org.apache.solr.common."
+            + "SolrException:org.apache.solr.common.SolrException: Could not load conf for core broken\"},"
+            + "\"status\":{\"ready\":{\"name\":\"ready\",\"uptime\":1200},"
+            + "\"broken\":{\"name\":\"broken\",\"instanceDir\":\"/var/solr/data/broken\",\"isLoaded\":\"false\"}}}"));
+    }
+
+    @Test
+    public void coreWithoutUptimeIsNotReady() throws IOException {
+        SOLRCoreReadyChecker checker = new SOLRCoreReadyChecker(8983, "localhost");
+        assertTrue(checker.allCoresReady(new ByteArrayInputStream(statusResponse(CORES, -1))));
+        for (int loading : new int[] { 0, CORES / 2, CORES - 1 }) {
+            assertFalse(checker.allCoresReady(new ByteArrayInputStream(statusResponse(CORES, loading))));
+        }
+        assertFalse(allCoresReady(checker, HEADER + "\"status\":{\"starting\":{\"name\":\"starting\","
+            + "\"uptime\":0}}}"));
+    }
+
+    @Test
+    public void coreNotLoadedIsNotReady() throws IOException {
+        SOLRCoreReadyChecker checker = new SOLRCoreReadyChecker(8983, "localhost");
+        // a core with loadOnStartup=false is only loaded by its first request
+        assertFalse(allCoresReady(checker, HEADER + "\"initFailures\":{},\"status\":{\"lazy\":{\"name\":"
+            + "\"lazy\",\"instanceDir\":\"/var/solr/data/lazy\",\"dataDir\":\"data/\",\"isLoaded\":\"false\"}}}"));
+    }
+
+    @Test
+    public void clusterStatusWithBooleanLeader() throws IOException {
+        SOLRCoreReadyChecker checker = new SOLRCoreReadyChecker(8983, "localhost");
+        String replica = "{\"core\":\"coll_shard1_replica_n1\",\"state\":\"%s\",\"leader\":%s,"
+            + "\"force_set_state\":false,\"numDocs\":0}";
+        String cluster = "{\"cluster\":{\"collections\":{\"coll\":{\"znodeVersion\":4,\"shards\":{\"shard1\":"
+            + "{\"range\":\"80000000-7fffffff\",\"state\":\"active\",\"replicas\":{\"core_node2\":%s}}}}},"
+            + "\"live_nodes\":[\"127.0.0.1:8983_solr\"]}}";
+        assertTrue(clusterReady(checker, String.format(Locale.ROOT, cluster,
+            String.format(Locale.ROOT, replica, "active", "true"))));
+        assertTrue(clusterReady(checker, String.format(Locale.ROOT, cluster,
+            String.format(Locale.ROOT, replica, "active", "\"true\""))));
+        assertFalse(clusterReady(checker, String.format(Locale.ROOT, cluster,
+            String.format(Locale.ROOT, replica, "active", "false"))));
+        assertFalse(clusterReady(checker, String.format(Locale.ROOT, cluster,
+            String.format(Locale.ROOT, replica, "recovering", "true"))));
+    }
+
+    private static boolean allCoresReady(SOLRCoreReadyChecker checker, String response) throws IOException {
+        return checker.allCoresReady(new ByteArrayInputStream(response.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static boolean clusterReady(SOLRCoreReadyChecker checker, String response) throws IOException {
+        return checker.clusterReady(new ByteArrayInputStream(response.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * The check as it was done on the parsed tree: every core must report an uptime.
+     */
+    private static boolean allCoresReadyTree(byte[] response) {
+        JsonObject root = JsonParser.parseReader(
+            new InputStreamReader(new ByteArrayInputStream(response), StandardCharsets.UTF_8)).getAsJsonObject();
+        JsonElement status = root.get("status");
+        if (status == null || !status.isJsonObject()) {
+            return false;
+        }
+        return status.getAsJsonObject().entrySet().stream()
+            .map(Map.Entry::getValue)
+            .map(JsonElement::getAsJsonObject)
+            .allMatch(core -> core.has("uptime") && core.get("uptime").getAsLong() > 0);
+    }
+
+    /**
+     * @param loading the index of the core that has no uptime yet, or -1 if all cores are ready
+     * @return a STATUS response, shaped like the one of SOLR 9 with <code>indexInfo=false</code>
+     */
+    private static byte[] statusResponse(int cores, int loading) {
+        StringBuilder json = new StringBuilder(512 * cores);
+        json.append("{\"responseHeader\":{\"status\":0,\"QTime\":12},\"initFailures\":{},\"status\":{");
+        for (int i = 0; i < cores; i++) {
+            String name = "core-" + i;
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append('"').append(name).append("\":{\"name\":\"").append(name)
+                .append("\",\"instanceDir\":\"/var/solr/data/").append(name)
+                .append("\",\"dataDir\":\"/var/solr/data/").append(name)
+                .append("/data/\",\"config\":\"solrconfig.xml\",\"schema\":\"managed-schema.xml\"")
+                .append(",\"startTime\":\"2024-05-01T10:15:30.123Z\"");
+            if (i != loading) {
+                json.append(",\"uptime\":").append(1000 + i);
+            }
+            json.append(",\"lastPublished\":\"active\",\"configVersion\":0}");
+        }
+        json.append("}}");
+        return json.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * This file is part of ***  M y C o R e  ***
+ * See http://www.mycore.de/ for details.
+ *
+ * MyCoRe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MyCoRe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MyCoRe.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mycore.plugins.maven.solr.tools;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestReporter;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Extracts a synthetic archive shaped like a SOLR distribution: a few thousand small configuration, script and
+ * documentation files and some larger jars. The benchmark of the serial and the parallel mode runs only with
+ * <code>-Dbenchmark=true</code>, it publishes the timings to the test report and only fails if the two modes extract
+ * different trees.
+ */
+public class TarExtractorTest {
+
+    private static final String ROOT = "solr-9.8.1/";
+
+    private static final int SMALL_FILES = 3000;
+
+    private static final int JARS = 40;
+
+    private static final int ROUNDS = 3;
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    @EnabledIfSystemProperty(named = "benchmark", matches = "true")
+    public void benchmarkSerialAgainstParallel(TestReporter reporter) throws IOException {
+        Path archive = tempDir.resolve("solr.tgz");
+        writeFixture(archive);
+
+        long serial = Long.MAX_VALUE;
+        long parallel = Long.MAX_VALUE;
+        Map<String, String> serialTree = null;
+        Map<String, String> parallelTree = null;
+        // the first round warms up the JIT and the page cache for both modes
+        for (int round = 0; round <= ROUNDS; round++) {
+            Path serialTarget = tempDir.resolve("serial-" + round);
+            long serialTime = extract(archive, serialTarget, false);
+            Path parallelTarget = tempDir.resolve("parallel-" + round);
+            long parallelTime = extract(archive, parallelTarget, true);
+            if (round > 0) {
+                serial = Math.min(serial, serialTime);
+                parallel = Math.min(parallel, parallelTime);
+            }
+            serialTree = describe(serialTarget);
+            parallelTree = describe(parallelTarget);
+        }
+
+        assertEquals(SMALL_FILES + JARS, serialTree.keySet().stream().filter(name -> !name.endsWith("/")).count());
+        assertEquals(serialTree, parallelTree);
+        reporter.publishEntry("serialMillis", Long.toString(serial / 1_000_000));
+        reporter.publishEntry("parallelMillis", Long.toString(parallel / 1_000_000));
+    }
+
+    @Test
+    public void failedWriteStopsExtraction() throws IOException {
+        Path archive = tempDir.resolve("solr.tgz");
+        writeFixture(archive);
+        Path target = tempDir.resolve("target");
+        // a directory where the archive has a file makes the write of that file fail
+        Files.createDirectories(target.resolve("bin/file-0.txt"));
+
+        TarExtractor extractor = new TarExtractor(target, ROOT);
+        extractor.setParallel(true);
+        try (InputStream is = Files.newInputStream(archive)) {
+            assertThrows(IOException.class, () -> extractor.extract(is));
+        }
+    }
+
+    private static long extract(Path archive, Path target, boolean parallel) throws IOException {
+        TarExtractor extractor = new TarExtractor(target, ROOT);
+        extractor.setParallel(parallel);
+        long start = System.nanoTime();
+        try (InputStream is = Files.newInputStream(archive)) {
+            extractor.extract(is);
+        }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * @return the relative paths of the extracted tree, mapped to size, permissions and modification time
+     */
+    private static Map<String, String> describe(Path root) throws IOException {
+        Map<String, String> tree = new TreeMap<>();
+        try (Stream<Path> paths = Files.walk(root)) {
+            for (Path path : paths.filter(p -> !p.equals(root)).toList()) {
+                String name = root.relativize(path).toString().replace('\\', '/');
+                if (Files.isDirectory(path)) {
+                    tree.put(name + "/", "");
+                } else {
+                    tree.put(name, Files.size(path) + " "
+                        + PosixFilePermissions.toString(Files.getPosixFilePermissions(path)) + " "
+                        + Files.getLastModifiedTime(path).toMillis());
+                }
+            }
+        }
+        return tree;
+    }
+
+    private static void writeFixture(Path archive) throws IOException {
+        Random random = new Random(42);
+        String[] directories = { "bin/", "docs/", "server/solr-webapp/", "server/solr/configsets/_default/conf/",
+            "modules/ltr/lib/", "licenses/" };
+        try (OutputStream os = Files.newOutputStream(archive);
+            TarArchiveOutputStream tar = new TarArchiveOutputStream(new GzipCompressorOutputStream(os))) {
+            tar.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+            for (String directory : directories) {
+                TarArchiveEntry entry = new TarArchiveEntry(ROOT + directory);
+                entry.setMode(0755);
+                tar.putArchiveEntry(entry);
+                tar.closeArchiveEntry();
+            }
+            for (int i = 0; i < SMALL_FILES; i++) {
+                String directory = directories[i % directories.length];
+                int mode = directory.equals("bin/") ? 0755 : 0644;
+                writeFile(tar, ROOT + directory + "file-" + i + ".txt", 512 + random.nextInt(16 * 1024), mode,
+                    random);
+            }
+            for (int i = 0; i < JARS; i++) {
+                writeFile(tar, ROOT + "server/solr-webapp/lib-" + i + ".jar", 256 * 1024 + random.nextInt(1024 * 1024),
+                    0644, random);
+            }
+        }
+    }
+
+    private static void writeFile(TarArchiveOutputStream tar, String name, int size, int mode, Random random)
+        throws IOException {
+        byte[] content = new byte[size];
+        // half random, half repeated bytes, so the archive inflates at a realistic rate
+        byte[] randomPart = new byte[size / 2];
+        random.nextBytes(randomPart);
+        System.arraycopy(randomPart, 0, content, 0, randomPart.length);
+        TarArchiveEntry entry = new TarArchiveEntry(name);
+        entry.setSize(size);
+        entry.setMode(mode);
+        entry.setModTime(1_700_000_000_000L + random.nextInt(1_000_000) * 1000L);
+        tar.putArchiveEntry(entry);
+        tar.write(content);
+        tar.closeArchiveEntry();
+    }
+}